@@ -0,0 +1,99 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.reliancy.jabba.decor.Routed;
+import com.reliancy.util.Handy;
+
+/** Compares reflective endpoint dispatch (Method.invoke) with the bound handles of MethodEndPoint.
+ * The full variants include argument decoding: per call normalize for reflection against
+ * the decoders folded into the handle.
+ * run with: gradle jmh -PjmhInclude=MethodEndPointBench
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MethodEndPointBench {
+    public static class Target{
+        @Routed(path="/noarg")
+        public String noarg(){return "ok";}
+        @Routed(path="/full/{id}")
+        public String full(int id,String name){return name;}
+    }
+    /** request with one path param and one query param. */
+    static class BenchRequest extends Request{
+        @Override public void finish(){}
+        @Override public boolean isAsync(){return false;}
+        @Override public boolean goAsync(){return false;}
+        @Override public String getPath(){return "/full/42";}
+        @Override public String getVerb(){return "GET";}
+        @Override public Object getParam(String pname,Object def){return Handy.nz(getQueryParam(pname),def);}
+        @Override public Object getQueryParam(String pname){return "name".equals(pname)?"name":null;}
+        @Override public Request setParam(String pname,Object val){return this;}
+        @Override public String getHeader(String key){return null;}
+        @Override public String getCookie(String name,String def){return def;}
+        @Override public String getRemoteAddress(){return null;}
+        @Override public long getContentLength(){return -1;}
+        @Override public java.io.Reader getBodyReader(){return null;}
+        @Override public java.io.InputStream getBodyStream(){return null;}
+        @Override public String getMount(){return null;}
+        @Override public String getProtocol(){return null;}
+        @Override public String getScheme(){return null;}
+    }
+    Target target;
+    Method noargMethod;
+    Method fullMethod;
+    MethodEndPoint noargEp;
+    MethodEndPoint fullEp;
+    Request request;
+
+    @Setup
+    public void setup() throws Exception{
+        target=new Target();
+        noargMethod=Target.class.getMethod("noarg");
+        fullMethod=Target.class.getMethod("full",int.class,String.class);
+        noargEp=new MethodEndPoint(target,noargMethod);
+        fullEp=new MethodEndPoint(target,fullMethod);
+        Router router=new Router();
+        router.importMethods(target);
+        request=new BenchRequest();
+        router.match("GET","/full/42",request.getRouteMatch());
+    }
+    @Benchmark
+    public Object reflectNoArg() throws Exception{
+        return noargMethod.invoke(target);
+    }
+    @Benchmark
+    public Object handleNoArg() throws Throwable{
+        return (Object)noargEp.handle.invokeExact();
+    }
+    @Benchmark
+    public Object reflectFull() throws Exception{
+        Object[] args=new Object[2];
+        Object id=request.getParam("id",null);
+        if(id==null) id=request.getPathParam(0);
+        args[0]=Handy.normalize(int.class,id);
+        args[1]=Handy.normalize(String.class,request.getParam("name",null));
+        return fullMethod.invoke(target,args);
+    }
+    @Benchmark
+    public Object handleFull() throws Throwable{
+        return (Object)fullEp.handle.invokeExact(request,(Response)null);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba.servlet;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.reliancy.jabba.CallSession;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/** Allocation per request of fresh request/response wrappers against the ExchangePool used by JettyApp.service.
+ * Each call does what service does around the chain: wrap, begin session, touch route, header, status, encoder, end.
+ * run with: gradle jmh -PjmhInclude=ExchangePoolBench -PjmhProfilers=gc and compare gc.alloc.rate.norm
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ExchangePoolBench {
+    HttpServletRequest http_request;
+    HttpServletResponse http_response;
+    ExchangePool pool;
+
+    @Setup
+    public void setup(){
+        // servlet side is a do nothing stub, it is the container's allocation not ours
+        http_request=(HttpServletRequest)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{HttpServletRequest.class},(p,m,a)->null);
+        http_response=(HttpServletResponse)Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class<?>[]{HttpServletResponse.class},(p,m,a)->null);
+        pool=new ExchangePool();
+    }
+    static Object work(ServletRequest req,ServletResponse resp){
+        req.getRouteMatch();
+        resp.setStatus(200);
+        resp.setHeader("Cache-Control","no-cache");
+        return resp.getEncoder();
+    }
+    @Benchmark
+    public Object fresh(){
+        ServletRequest req=new ServletRequest(http_request);
+        ServletResponse resp=new ServletResponse(req,http_response);
+        CallSession ss=new CallSession();
+        ss.beginFresh(null,req,resp);
+        req.setSession(ss);
+        Object ret=work(req,resp);
+        ss.end();
+        return ret;
+    }
+    @Benchmark
+    public Object pooled(){
+        ServletResponse resp=pool.acquire(http_request,http_response);
+        ServletRequest req=(ServletRequest)resp.getRequest();
+        CallSession ss=req.getSession();
+        ss.beginFresh(null,req,resp);
+        Object ret=work(req,resp);
+        ss.end();
+        return ret;
+    }
+}
@@ -10,6 +10,7 @@ package com.reliancy.dbo;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ListIterator;
 import java.util.Observable;
@@ -19,6 +20,8 @@ import java.util.Observable;
  * we can create specialized virtual holders that use backends. by itself it will
  * implement in memory list.
  * also this class is an observable and we can monitor update to it.
+ * items are kept once each, a hash set beside the list answers contains so adding
+ * stays constant time.
  */
 public class Bag<E> extends Observable implements Collection<E>{
     /** event to send to observers. */
@@ -48,6 +51,7 @@ public class Bag<E> extends Observable implements Collection<E>{
         }
     }
     final ArrayList<E> items=new ArrayList<>();
+    final HashSet<Object> index=new HashSet<>();
     
     public Bag(){
     }
@@ -69,13 +73,7 @@ public class Bag<E> extends Observable implements Collection<E>{
 
     @Override
     public boolean contains(Object o) {
-        final Iterator<E> it=iterator();
-        while(it.hasNext()){
-            final E e=it.next();
-            if(e!=null && o!=null && e.equals(o)) return true;
-            else if(e==o) return true;
-        }
-        return false;
+        return index.contains(o);
     }
     @Override
     public boolean containsAll(Collection<?> c) {
@@ -86,11 +84,45 @@ public class Bag<E> extends Observable implements Collection<E>{
         return listIterator(0);
     }
     public ListIterator<E> listIterator(int offset){
-        return items.listIterator(offset);
+        return new Tracking(items.listIterator(offset));
     }
     @Override
     public Iterator<E> iterator() {
-        return items.iterator();
+        return listIterator(0);
+    }
+    /** keeps the index in step with changes made through an iterator.
+     * like Bag.add it skips items already held, set refuses to put in a second copy.
+     */
+    final class Tracking implements ListIterator<E>{
+        final ListIterator<E> it;
+        E last;
+        Tracking(ListIterator<E> it){
+            this.it=it;
+        }
+        @Override public boolean hasNext(){return it.hasNext();}
+        @Override public E next(){return last=it.next();}
+        @Override public boolean hasPrevious(){return it.hasPrevious();}
+        @Override public E previous(){return last=it.previous();}
+        @Override public int nextIndex(){return it.nextIndex();}
+        @Override public int previousIndex(){return it.previousIndex();}
+        @Override
+        public void remove(){
+            it.remove();
+            index.remove(last);
+        }
+        @Override
+        public void set(E e){
+            if(e!=last && index.contains(e)) throw new IllegalArgumentException("item already in bag");
+            it.set(e);
+            index.remove(last);
+            index.add(last=e);
+        }
+        @Override
+        public void add(E e){
+            if(index.contains(e)) return;
+            it.add(e);
+            index.add(e);
+        }
     }
 
     @Override
@@ -105,12 +137,13 @@ public class Bag<E> extends Observable implements Collection<E>{
 
     @Override
     public boolean add(E e) {
-        if(items.contains(e)) return true;
+        if(index.contains(e)) return true;
         if(countObservers()>0){
             BagChanged<E> evt=new Bag.BagChanged<>(this,BagChanged.ADD,e);
             setChanged();
             notifyObservers(evt);
         }
+        index.add(e);
         return items.add(e);
     }
     public Bag<E> append(E e){
@@ -125,6 +158,7 @@ public class Bag<E> extends Observable implements Collection<E>{
             setChanged();
             notifyObservers(evt);
         }
+        index.remove(o);
         return items.remove(o);
     }
 
@@ -148,15 +182,18 @@ public class Bag<E> extends Observable implements Collection<E>{
             notifyObservers(evt);
         }
         if(c!=null){
+            index.removeAll(c);
             return items.removeAll(c);
         }else{
             items.clear();
+            index.clear();
             return true;
         }
     }
 
     @Override
     public boolean retainAll(Collection<?> c) {
+        index.retainAll(c);
         return items.retainAll(c);
     }
 
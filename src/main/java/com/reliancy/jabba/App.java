@@ -12,6 +12,10 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import com.reliancy.dbo.Terminal;
 import com.reliancy.jabba.sec.SecurityPolicy;
@@ -45,6 +49,7 @@ public abstract class App extends Processor{
     protected SecurityPolicy policy=null;
     protected Terminal storage=null;
     protected Map<String,AppModule> modules;
+    protected Executor executor=null;
 
     public App(String id) {
         super(id);
@@ -72,6 +77,13 @@ public abstract class App extends Processor{
         }
         return m;
     }
+    /** first middleware of given type or null. */
+    public <T extends Processor> T getMiddleWare(Class<T> cls){
+        for(Processor p=first;p!=null;p=p.next){
+            if(cls.isInstance(p)) return cls.cast(p);
+        }
+        return null;
+    }
     public void removeMiddleWare(Processor m){
         if(m==null) return;
         if(first==m){
@@ -135,6 +147,7 @@ public abstract class App extends Processor{
         if(config!=null) throw new CodeException(ERR_NOTCLOSED).put("resource","Router.begin()");
         if(conf==null) throw new CodeException(ERR_NOCONFIG);
         config=conf;
+        if(executor==null) executor=createExecutor(conf);
         for(Processor p=first;p!=null;p=p.getNext()){
             p.begin();
         }
@@ -148,6 +161,10 @@ public abstract class App extends Processor{
                 p.end();
             }
         }finally{
+            if(executor instanceof ExecutorService && executor!=ForkJoinPool.commonPool()){
+                ((ExecutorService)executor).shutdown();
+            }
+            executor=null;
             try{
                 // detaches from config
                 super.end(); 
@@ -159,6 +176,22 @@ public abstract class App extends Processor{
             }
         }
     }
+    /** picks executor for async work (@Async endpoints, promise stages) by Config.ASYNC_EXECUTOR.
+     * virtual runs each task on its own virtual thread which suits work blocking on io (jdbc),
+     * common uses the fork join common pool, server (default) returns null and leaves it to the container.
+     */
+    protected Executor createExecutor(Config conf){
+        String mode=Config.ASYNC_EXECUTOR.get(conf);
+        if("virtual".equalsIgnoreCase(mode)) return Executors.newVirtualThreadPerTaskExecutor();
+        if("common".equalsIgnoreCase(mode)) return ForkJoinPool.commonPool();
+        return null;
+    }
+    public Executor getExecutor(){
+        return executor;
+    }
+    public void setExecutor(Executor executor){
+        this.executor=executor;
+    }
     public AppSessionFilter addAppSession(){
         return addMiddleWare(new AppSessionFilter(this));
     }
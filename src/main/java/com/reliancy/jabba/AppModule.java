@@ -2,10 +2,13 @@ package com.reliancy.jabba;
 /** Special controller interface which is implemented by modules.
  * Modules are classes that publish or retract middleware or endpoints into application.
  * They allow us to compose an application of disparate apis.
+ * By default retracting also pulls any routes the module serves out of the router.
  */
 public interface AppModule {
     void publish(App app);
     default void retract(App app){
         app.retractModule(this,"*");
+        Router router=app.getRouter();
+        if(router!=null) router.removeRoutes(this);
     };
 }
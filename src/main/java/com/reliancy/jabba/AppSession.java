@@ -7,26 +7,51 @@ You may not use this file except in compliance with the License.
 */
 package com.reliancy.jabba;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.LoggerFactory;
 
 import com.reliancy.jabba.sec.SecurityActor;
 import com.reliancy.jabba.ui.Feedback;
 /** AppSession is recovered early on and holds per-user app instance data.
  * Unless it is owned by user db terminals should not be held here.
+ * Sessions live in a Store: on the heap (SessionRegistry, the default), in a mapped file or in a
+ * database so they survive restarts and can be shared by nodes. A stored session writes itself back
+ * on setValue/setUser and reports activity via touch. Stores keeping sessions off heap persist the
+ * values they can encode (strings, numbers, booleans, bytes, Serializable) and the user by id.
  */
 
 public class AppSession implements Session{
     public static interface Factory{
         AppSession create(String id,App app);
     } 
+    /** where sessions live between requests. */
+    public static interface Store extends Closeable{
+        /** session under id (possibly expired) or null. */
+        AppSession load(String id,App app,Factory factory) throws IOException;
+        /** stores or replaces the session under its id. */
+        void save(AppSession ss) throws IOException;
+        void delete(String id) throws IOException;
+        /** notes lastActive changed, stores may defer writing it. */
+        default void touch(AppSession ss){
+        }
+        @Override
+        default void close() throws IOException{
+        }
+    }
     final String id;
     final App app;
     final HashMap<String,Object> values=new HashMap<>();
     long timeCreated;
-    long lastActive;
+    volatile long lastActive;
     long maxAge;
     SecurityActor user;
+    Integer userId;         // kept by stores, user is reloaded from it
     Feedback feedback;
+    Store store;            // where we write back to
 
     public AppSession(String id,App app){
         this.id=id;
@@ -38,6 +63,45 @@ public class AppSession implements Session{
     public void setValue(String key, Object val) {
         if(val!=null) values.put(key,val);
         else values.remove(key);
+        saved();
+    }
+    /** writes back to our store, failures are logged since callers can not act on them. */
+    protected void saved(){
+        Store st=store;
+        if(st==null) return;
+        try{
+            st.save(this);
+        }catch(IOException e){
+            LoggerFactory.getLogger(AppSession.class).error("saving session "+id+":",e);
+        }
+    }
+    /** fills state read back by a store. */
+    protected void restore(long created,long lastActive,long maxAge,Integer userId,Map<String,Object> vals){
+        this.timeCreated=created;
+        this.lastActive=lastActive;
+        this.maxAge=maxAge;
+        this.userId=userId;
+        values.clear();
+        if(vals!=null) values.putAll(vals);
+    }
+    public String getId(){
+        return id;
+    }
+    public Store getStore(){
+        return store;
+    }
+    public void setStore(Store st){
+        store=st;
+    }
+    public long getTimeCreated(){
+        return timeCreated;
+    }
+    public long getLastActive(){
+        return lastActive;
+    }
+    /** values as they are, stores read them to encode. */
+    public Map<String,Object> getValues(){
+        return values;
     }
     @Override
     public Object getValue(String key) {
@@ -51,42 +115,68 @@ public class AppSession implements Session{
     }
     public void setLastActive(){
         lastActive=System.currentTimeMillis();
+        Store st=store;
+        if(st!=null) st.touch(this);
     }
     public boolean isExpired(){
         return getTimeInactive()>maxAge;
     }
-    /** allows specialized appsessions to register with more ids. */
-    protected void onPublish(HashMap<String,AppSession> directory){
+    public long getMaxAge(){
+        return maxAge;
+    }
+    public void setMaxAge(long millis){
+        maxAge=millis;
+    }
+    /** allows specialized appsessions to register with more ids (directory.put). */
+    protected void onPublish(SessionRegistry directory){
+    }
+    /** allows specialized appsessions to deregister with more ids (directory.remove). */
+    protected void onRetract(SessionRegistry directory){
+    }
+    /** lets off-heap stores read back serialized values of classes matching pattern (e.g. com.acme.**). */
+    public static void allowStored(String pattern){
+        SessionCodec.allow(pattern);
+    }
+    static volatile SessionRegistry instances=new SessionRegistry();
+    public static SessionRegistry getRegistry(){
+        return instances;
     }
-    /** allows specialized appsessions to deregister with more ids. */
-    protected void onRetract(HashMap<String,AppSession> directory){
+    public static void setRegistry(SessionRegistry reg){
+        instances=reg;
     }
-    static HashMap<String,AppSession> instances=new HashMap<>();
     public static AppSession getInstance(String id){
         return instances.get(id);
     }
     public static void setInstance(String id,AppSession ss){
-        AppSession old=getInstance(id);
-        if(ss!=null){
-            if(ss==old) return; // already published
-            instances.put(id,ss);
-            ss.onPublish(instances);
-        }else{
-            if(ss==old) return;  // already retracted
-            old.onRetract(instances);
-            instances.remove(id);
-        }
+        if(ss!=null) instances.publish(id,ss);
+        else instances.retract(id);
     }
     public SecurityActor getUser() {
         return user;
     }
     public void setUser(SecurityActor user){
         this.user=user;
+        this.userId=user!=null?user.getId():null;
+        saved();
+    }
+    /** sets a user reloaded by userId, nothing is written back. */
+    public void restoreUser(SecurityActor user){
+        this.user=user;
     }
+    /** id of the user, also known when the user object is not loaded yet. */
+    public Integer getUserId(){
+        return userId;
+    }
+    /** session of the current call, made now if it was deferred. */
     public static AppSession getInstance() {
         CallSession ss=CallSession.getInstance();
         return ss!=null?(AppSession)ss.getAppSession():null;
     }
+    /** session of the current call if one was made, never makes one. */
+    public static AppSession peekInstance() {
+        CallSession ss=CallSession.getInstance();
+        return ss!=null?(AppSession)ss.peekAppSession():null;
+    }
     public Feedback getFeedback() {
         if(feedback==null) feedback=new Feedback();
         return feedback;
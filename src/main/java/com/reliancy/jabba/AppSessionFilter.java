@@ -7,19 +7,33 @@ You may not use this file except in compliance with the License.
 */
 package com.reliancy.jabba;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.reliancy.dbo.SQLTerminal;
+import com.reliancy.jabba.sec.SecurityPolicy;
 
 /** AppSession middleware will inject an appsession object into callsession.
  * During each request,response we will if not alrady present extract a cookie or param
  * and based on it install an app wide sesson dictionary.
+ * Sessions come from a Store: the heap registry by default, or as SESSION_STORE says a mapped
+ * file (file:path) or a database (terminal url). While running it caps the registry and keeps its
+ * expiry sweeper going, or for a file or database keeps flushing session activity.
+ * A known session is attached right away, a new one is made only when the call first asks for it
+ * (CallSession.getAppSession), so anonymous traffic costs no session and gets no cookie.
+ * Excluded path prefixes (FileServer buckets) get no session unless the security policy secures the path.
  */
 public class AppSessionFilter extends Processor{
     /**special key to identify session cookie. */
     public static final String KEY_NAME="jbssid";
     AppSession.Factory factory;
     App app;
+    AppSession.Store store;
+    boolean ownStore;   // made from config, closed at end
+    final CopyOnWriteArrayList<String> excluded=new CopyOnWriteArrayList<>();
     public AppSessionFilter(App a) {
         this(a,null);
     }
@@ -29,35 +43,131 @@ public class AppSessionFilter extends Processor{
         if(f==null) f=(id,app)->new AppSession(id, app);
         factory=f;
     }
+    public AppSession.Store getStore(){
+        return store!=null?store:AppSession.getRegistry();
+    }
+    /** sets where sessions live, null means the heap registry. */
+    public AppSessionFilter setStore(AppSession.Store st){
+        store=st;
+        ownStore=false;
+        return this;
+    }
+    @Override
+    public void begin(Config conf) throws Exception{
+        super.begin(conf);
+        Config c=conf!=null?conf:app.getConfig();
+        if(store==null){
+            String spec=c!=null?Config.SESSION_STORE.get(c):Config.SESSION_STORE.getInitial();
+            store=openStore(spec);
+            ownStore=store!=null;
+        }
+        AppSession.Store st=getStore();
+        if(st instanceof SessionRegistry){
+            SessionRegistry reg=(SessionRegistry)st;
+            reg.setCapacity(c!=null?Config.SESSION_MAX.get(c):Config.SESSION_MAX.getInitial());
+            reg.startSweeper(c!=null?Config.SESSION_SWEEP_INTERVAL.get(c):Config.SESSION_SWEEP_INTERVAL.getInitial());
+        }else if(st instanceof SQLSessionStore){
+            ((SQLSessionStore)st).startFlusher(c!=null?Config.SESSION_FLUSH_INTERVAL.get(c):Config.SESSION_FLUSH_INTERVAL.getInitial());
+        }else if(st instanceof MappedSessionStore){
+            ((MappedSessionStore)st).startFlusher(c!=null?Config.SESSION_FLUSH_INTERVAL.get(c):Config.SESSION_FLUSH_INTERVAL.getInitial());
+        }
+    }
+    /** store for a SESSION_STORE spec: heap (null), file:path or a terminal url. */
+    protected AppSession.Store openStore(String spec) throws IOException{
+        if(spec==null || spec.isEmpty() || spec.equalsIgnoreCase("heap")) return null;
+        if(spec.startsWith("file:")) return new MappedSessionStore(new File(spec.substring(5)));
+        return new SQLSessionStore(new SQLTerminal(spec));
+    }
+    @Override
+    public void end() throws Exception{
+        AppSession.Store st=getStore();
+        if(st instanceof SessionRegistry) ((SessionRegistry)st).stopSweeper();
+        if(ownStore){
+            store.close();
+            store=null;
+            ownStore=false;
+        }else if(st instanceof SQLSessionStore){
+            // the caller owns the store, we only stop the flusher we started
+            ((SQLSessionStore)st).stopFlusher();
+            ((SQLSessionStore)st).flush();
+        }else if(st instanceof MappedSessionStore){
+            ((MappedSessionStore)st).stopFlusher();
+            ((MappedSessionStore)st).flush();
+        }
+        super.end();
+    }
+    /** paths starting with prefix never get a session. */
+    public AppSessionFilter exclude(String prefix){
+        if(!excluded.contains(prefix)) excluded.add(prefix);
+        return this;
+    }
+    public boolean isExcluded(String path){
+        if(path==null) return false;
+        for(String prefix:excluded) if(path.startsWith(prefix)) return true;
+        return false;
+    }
+    /** true if the app's security policy wants a user for this request. */
+    protected boolean isSecured(Request request){
+        SecurityPolicy pol=app!=null?app.getSecurityPolicy():null;
+        return pol!=null && pol.checkSecured(request.getVerb()+" "+request.getPath())!=null;
+    }
     @Override
     public void beforeServe(Request request, Response response) throws IOException {
+        if(isExcluded(request.getPath()) && !isSecured(request)) return;
         String ssid=(String)request.getParam(KEY_NAME,null);
+        CallSession css=CallSession.of(request);
+        if(ssid!=null){
+            AppSession ss=load(ssid);
+            if(ss!=null && !ss.isExpired()){
+                // this session is good
+                ss.setLastActive();
+                css.setAppSession(ss);
+                return;
+            }
+        }
+        // missing or expired, made only if the call asks for it
+        css.setAppSessionSource(()->create(ssid,request,response));
+    }
+    /** session under ssid, a failing store is logged and treated as a miss. */
+    protected AppSession load(String ssid){
+        AppSession.Store st=getStore();
+        try{
+            AppSession ss=st.load(ssid,app,factory);
+            if(ss!=null) ss.setStore(st);
+            return ss;
+        }catch(IOException e){
+            log().error("loading session "+ssid+":",e);
+            return null;
+        }
+    }
+    /** makes and publishes a session, replacing an expired one under the same id.
+     * the cookie goes out now since our afterServe ran before the endpoint asked.
+     */
+    protected AppSession create(String ssid,Request request,Response response){
         if(ssid==null){
             UUID uuid = UUID.randomUUID();
             ssid=uuid.toString();
         }
-        AppSession ss=AppSession.getInstance(ssid);
-        if(ss!=null){
-            if(ss.isExpired()){
-                // this app sessin expired - create a new one
-                ss=factory.create(ssid,app);
-                AppSession.setInstance(ssid, ss);
-            }else{
-                // this session is good
-                ss.setLastActive();
-            }
-        }else{
-            // no session available
-            ss=factory.create(ssid,app);
-            AppSession.setInstance(ssid, ss);
+        AppSession ss=factory.create(ssid,app);
+        AppSession.Store st=getStore();
+        ss.setStore(st);
+        try{
+            st.save(ss);
+        }catch(IOException e){
+            log().error("saving session "+ssid+":",e);
         }
-        CallSession css=CallSession.getInstance();
-        css.setAppSession(ss);
+        if(response.getState().canConfigure()) setCookie(request,response,ss);
+        else log().warn("session {} made after the response was committed, no cookie",ssid);
+        return ss;
     }
     @Override
     public void afterServe(Request request, Response response) throws IOException {
-        CallSession css=CallSession.getInstance();
-        AppSession ss=(AppSession) css.getAppSession();
+        CallSession css=CallSession.of(request);
+        AppSession ss=(AppSession) css.peekAppSession();
+        if(ss==null) return; // nobody needed a session (yet), no cookie
+        setCookie(request,response,ss);
+    }
+    protected void setCookie(Request request,Response response,AppSession ss){
         // Determine if request is HTTPS
         boolean isSecure="https".equalsIgnoreCase(request.getProtocol()) || 
                          "https".equalsIgnoreCase(request.getScheme());
@@ -0,0 +1,265 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Byte bounded cache of static assets used by FileServer.
+ * An entry holds the content with its mime type, etag, length and modification time, plus gzip and deflate
+ * variants built once at insert for compressible types (kept only if smaller). Brotli has no encoder in the
+ * jdk so deflate is the second variant.
+ * Entries read from a file are revalidated by mtime, at most once per check interval; a changed or missing
+ * file drops the entry. Eviction is the clock sweep of ClockCache (a hit marks the entry used, the sweep gives
+ * used entries a second chance) but bounded by bytes held instead of count.
+ * Capacity of 0 or less disables caching.
+ */
+public class AssetCache {
+    public static final String GZIP="gzip";
+    public static final String DEFLATE="deflate";
+    static final int COMPRESS_MIN=256;
+
+    public static final class Asset{
+        final String key;
+        final Path file;            // null for jar or url resources, they are not revalidated
+        final long modified;
+        final String mime;
+        final String etag;
+        final byte[] content;
+        final byte[] gzip;
+        final byte[] deflate;
+        volatile long checked;
+        volatile boolean used;
+
+        Asset(String key,Path file,long modified,String etag,String mime,byte[] content){
+            this.key=key;
+            this.file=file;
+            this.modified=modified;
+            this.etag=etag;
+            this.mime=mime;
+            this.content=content;
+            boolean zip=content.length>=COMPRESS_MIN && isCompressible(mime);
+            this.gzip=zip?smaller(compress(content,true),content):null;
+            this.deflate=zip?smaller(compress(content,false),content):null;
+            this.checked=System.currentTimeMillis();
+        }
+        public String getKey(){return key;}
+        public Path getFile(){return file;}
+        public long getModified(){return modified;}
+        public String getMime(){return mime;}
+        public String getETag(){return etag;}
+        public long getLength(){return content.length;}
+        public boolean hasVariants(){return gzip!=null || deflate!=null;}
+        /** bytes for the encoding picked by chooseEncoding, null means identity. */
+        public byte[] getContent(String encoding){
+            if(GZIP.equals(encoding) && gzip!=null) return gzip;
+            if(DEFLATE.equals(encoding) && deflate!=null) return deflate;
+            return content;
+        }
+        /** best encoding we hold that the Accept-Encoding header allows, gzip first, null for identity. */
+        public String chooseEncoding(String accept){
+            if(accept==null || !hasVariants()) return null;
+            if(gzip!=null && accepts(accept,GZIP)) return GZIP;
+            if(deflate!=null && accepts(accept,DEFLATE)) return DEFLATE;
+            return null;
+        }
+        long size(){
+            return content.length+(gzip!=null?gzip.length:0)+(deflate!=null?deflate.length:0);
+        }
+    }
+    final ConcurrentHashMap<String,Asset> data=new ConcurrentHashMap<>();
+    final AtomicLong held=new AtomicLong();
+    volatile long capacity;
+    volatile int maxEntry;
+    volatile long checkInterval=1000;
+    final LongAdder hits=new LongAdder();
+    final LongAdder misses=new LongAdder();
+    final LongAdder evictions=new LongAdder();
+    final LongAdder stale=new LongAdder();
+
+    public AssetCache(long capacity,int maxEntry){
+        this.capacity=capacity;
+        this.maxEntry=maxEntry;
+    }
+    public long getCapacity(){
+        return capacity;
+    }
+    public AssetCache setCapacity(long c){
+        capacity=c;
+        if(c<=0) clear(); else if(held.get()>c) sweep();
+        return this;
+    }
+    /** largest content accepted, bigger files are served from disk. */
+    public int getMaxEntry(){
+        return maxEntry;
+    }
+    public AssetCache setMaxEntry(int m){
+        maxEntry=m;
+        return this;
+    }
+    /** how long (ms) a file backed entry is trusted before its mtime is checked again. */
+    public AssetCache setCheckInterval(long ms){
+        checkInterval=ms;
+        return this;
+    }
+    public boolean accepts(long length){
+        return capacity>0 && length<=maxEntry;
+    }
+    public int size(){
+        return data.size();
+    }
+    /** bytes held by all entries and their variants. */
+    public long getHeld(){
+        return held.get();
+    }
+    public Asset get(String key){
+        Asset a=capacity>0?data.get(key):null;
+        if(a!=null && a.file!=null && !isFresh(a)){
+            if(data.remove(key,a)) held.addAndGet(-a.size());
+            stale.increment();
+            a=null;
+        }
+        if(a==null){
+            misses.increment();
+            return null;
+        }
+        if(!a.used) a.used=true;
+        hits.increment();
+        return a;
+    }
+    boolean isFresh(Asset a){
+        long now=System.currentTimeMillis();
+        if(now-a.checked<checkInterval) return true;
+        try{
+            if(Files.getLastModifiedTime(a.file).toMillis()!=a.modified) return false;
+        }catch(IOException e){
+            return false; // gone
+        }
+        a.checked=now;
+        return true;
+    }
+    /** builds and stores an entry, returns null if caching is off or content too big. */
+    public Asset put(String key,Path file,long modified,String etag,String mime,byte[] content){
+        if(!accepts(content.length)) return null;
+        Asset a=new Asset(key,file,modified,etag,mime,content);
+        long sz=a.size();
+        Asset old=data.put(key,a);
+        held.addAndGet(old!=null?sz-old.size():sz);
+        if(held.get()>capacity) sweep();
+        return a;
+    }
+    public Asset remove(String key){
+        Asset a=data.remove(key);
+        if(a!=null) held.addAndGet(-a.size());
+        return a;
+    }
+    public void clear(){
+        for(String key:data.keySet()) remove(key);
+    }
+    /** drops entries backed by file, null file drops everything. */
+    public void invalidate(Path file){
+        if(file==null){
+            clear();
+            return;
+        }
+        Path target=file.toAbsolutePath().normalize();
+        for(Asset a:data.values()){
+            if(a.file!=null && target.equals(a.file.toAbsolutePath().normalize()) && data.remove(a.key,a)){
+                held.addAndGet(-a.size());
+            }
+        }
+    }
+    /** evicts entries not used since the last pass until under capacity, two passes at most. */
+    protected synchronized void sweep(){
+        long cap=capacity;
+        for(int pass=0;pass<2 && held.get()>cap;pass++){
+            Iterator<Map.Entry<String,Asset>> it=data.entrySet().iterator();
+            while(it.hasNext() && held.get()>cap){
+                Asset a=it.next().getValue();
+                if(a.used){
+                    a.used=false;
+                }else if(data.remove(a.key,a)){
+                    held.addAndGet(-a.size());
+                    evictions.increment();
+                }
+            }
+        }
+    }
+    public long getHits(){
+        return hits.sum();
+    }
+    public long getMisses(){
+        return misses.sum();
+    }
+    public long getEvictions(){
+        return evictions.sum();
+    }
+    /** entries dropped because their file changed or went away. */
+    public long getStale(){
+        return stale.sum();
+    }
+    /** hits over all lookups, 0 if nothing was looked up yet. */
+    public double getHitRatio(){
+        long h=hits.sum();
+        long all=h+misses.sum();
+        return all>0?(double)h/all:0.0;
+    }
+    @Override
+    public String toString(){
+        return String.format("size:%d bytes:%d/%d hits:%d misses:%d evictions:%d stale:%d",
+            size(),getHeld(),capacity,getHits(),getMisses(),getEvictions(),getStale());
+    }
+    public static boolean isCompressible(String mime){
+        if(mime==null) return false;
+        return mime.startsWith("text/") || mime.contains("json") || mime.contains("javascript")
+            || mime.contains("xml") || mime.contains("svg");
+    }
+    /** true if the coding is listed in an Accept-Encoding value and not refused with q=0. */
+    public static boolean accepts(String accept,String coding){
+        for(String part:accept.split(",")){
+            String[] kv=part.split(";");
+            String name=kv[0].trim();
+            if(!name.equalsIgnoreCase(coding) && !name.equals("*")) continue;
+            for(int i=1;i<kv.length;i++){
+                String p=kv[i].trim();
+                if(p.startsWith("q=") && isZero(p.substring(2).trim())) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+    static boolean isZero(String q){
+        try{
+            return Double.parseDouble(q)==0;
+        }catch(NumberFormatException e){
+            return false;
+        }
+    }
+    static byte[] compress(byte[] content,boolean gzip){
+        ByteArrayOutputStream buf=new ByteArrayOutputStream(content.length/2+64);
+        try(OutputStream out=gzip?new GZIPOutputStream(buf):new DeflaterOutputStream(buf)){
+            out.write(content);
+        }catch(IOException e){
+            return null; // memory streams do not fail
+        }
+        return buf.toByteArray();
+    }
+    static byte[] smaller(byte[] packed,byte[] content){
+        return packed!=null && packed.length<content.length?packed:null;
+    }
+}
@@ -7,10 +7,11 @@ You may not use this file except in compliance with the License.
 */
 package com.reliancy.jabba;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 /**
  * Thread local object that lets us access some variables in specialized handler methods.
@@ -25,7 +26,25 @@ import java.util.concurrent.Executor;
  * <li><b>beginFresh()</b> - Initialize session at the top of request processing (main thread)</li>
  * <li><b>beginAgain()</b> - Reattach session when switching threads (async workers)</li>
  * <li><b>end()</b> - Detach from current thread, decrement counter. Only cleans up when count reaches zero.</li>
+ * <li><b>retain()/release()</b> - Hold the session for work not bound to any thread yet, such as a pending promise chain.</li>
+ * <li><b>attach()/detach()</b> - Bind for the span of one promise stage without counting, the chain already holds it.</li>
  * </ul>
+ * beginAgain() returns false when the session is already bound to the calling thread, in that case
+ * the caller must not call end(). This keeps the count right when a promise stage happens to run
+ * on the thread that is already bound, and it holds for virtual threads which have their own thread locals.
+ * 
+ * <h2>Explicit Context</h2>
+ * The session also travels with the request (Request.getSession()) and promise stages capture it,
+ * so framework code uses CallSession.of(request) and touches the thread local only as a fallback.
+ * The thread binding is kept for user code calling getInstance(). None of the binding methods
+ * take a monitor, counts are atomic and only the holder dropping the count to zero cleans up.
+ * A ScopedValue binding would fit too but it is a preview api in java 21 so we stay off it.
+ * 
+ * <h2>Call Stack</h2>
+ * Processors entered on the way down are kept in a fixed array, pushed and popped by the thread
+ * owning the session. beginFresh() makes the calling thread the owner, attach() hands ownership
+ * to the thread running a promise stage (stages run one after another so there is one writer at a time).
+ * Going deeper than MAX_DEPTH is treated as a bug and fails.
  * 
  * <p><b>Async Flow Example:</b></p>
  * <pre>
@@ -47,11 +66,16 @@ import java.util.concurrent.Executor;
  * <p>This ensures the session and its resources remain valid until ALL threads complete.</p>
  */
 public class CallSession implements Session{
-    ArrayList<Processor> callers=new ArrayList<>();
+    public static final int MAX_DEPTH=32;
+    final Processor[] callers=new Processor[MAX_DEPTH];
+    int depth;
+    volatile Thread owner;      // only thread allowed to push or pop
     Session appSession;
+    Supplier<? extends Session> appSessionSource; // makes appSession when first asked for
     Request request;
     Response response;
     Executor executor;
+    Runnable onRelease;         // called after the last hold is dropped, used to recycle
     /** Atomic counter tracking how many threads are currently using this session */
     transient AtomicInteger instanceCount=new AtomicInteger(0);
 
@@ -63,16 +87,28 @@ public class CallSession implements Session{
      * If the session is the current one and there are no more instances, clear the session.
      * If the session is the current one and there are more instances, decrement the instance count.
     */
-    public synchronized boolean end(){
+    public boolean end(){
         CallSession current=instance.get();
         if(current!=this) return false; // not the current session
         instance.remove(); // remove from this thread
-        int count=instanceCount.updateAndGet(i -> i>0 ? i-1 : 0);
+        return release();
+    }
+    /** Keeps session alive without binding it to a thread, pair with release(). */
+    public void retain(){
+        instanceCount.incrementAndGet();
+    }
+    /** Drops one hold on the session, the last one cleans up.
+     * @return true if the session was cleaned up
+     */
+    public boolean release(){
+        int count=instanceCount.decrementAndGet();
+        if(count<0) instanceCount.compareAndSet(count,0); // unbalanced release, already cleaned
         if(count==0){
             // if no more instances, clear the session
             try{
-                while(callers.size()>0){
-                    Processor last=callers.remove(callers.size()-1);
+                while(depth>0){
+                    Processor last=callers[--depth];
+                    callers[depth]=null;
                     if(last!=null && last.isActive()){
                         try{
                             last.afterServe(request, response); // call after to ensure proper cleanup
@@ -84,11 +120,16 @@ public class CallSession implements Session{
                 };
             }finally{
                 appSession=null;
+                appSessionSource=null;
                 request=null;
                 response=null;
                 executor=null;
-                callers.clear();
+                Arrays.fill(callers,0,depth,null);
+                depth=0;
+                owner=null;
             }
+            Runnable r=onRelease;
+            if(r!=null) r.run();
             return true;
         }
         return false;
@@ -101,37 +142,82 @@ public class CallSession implements Session{
      * @param resp
      * @return true if the session was successfully begun, false otherwise
      */
-    public synchronized boolean beginFresh(Session ss,Request req,Response resp){
+    public boolean beginFresh(Session ss,Request req,Response resp){
+        CallSession current=instance.get();
+        if(current!=null && current!=this) current.end(); // end previous one if any
         appSession=ss;
+        appSessionSource=null;
         request=req;
         response=resp;
         executor=null;
-        callers.clear();
-        return beginAgain();
+        Arrays.fill(callers,0,depth,null);
+        depth=0;
+        owner=Thread.currentThread();
+        instance.set(this);
+        instanceCount.set(1);
+        return true;
     }
     
-    /** Begins session again in a different thread..
-     * @return true if the session was successfully begun, false otherwise
+    /** Begins session again in a different thread.
+     * @return true if the session was bound to this thread now and must be ended,
+     * false if it was bound already
      */
-    public synchronized boolean beginAgain(){
+    public boolean beginAgain(){
         CallSession current=instance.get();
-        if(this==current) return true;
+        if(this==current) return false;
         if(current!=null) current.end(); // end previous one if any
         instance.set(this); // add to this thread
         instanceCount.incrementAndGet(); // increment count
         return true;
     }
-    protected void enter(Processor c){callers.add(c);}
+    /** Binds session to calling thread for one stage of work without counting it.
+     * Used when something else (the promise chain) holds the session alive.
+     * @return session bound before, pass it to detach()
+     */
+    public CallSession attach(){
+        CallSession prev=instance.get();
+        if(prev!=this) instance.set(this);
+        owner=Thread.currentThread(); // stage takes over the call stack
+        return prev;
+    }
+    /** Undoes attach(), restoring whatever was bound before. */
+    public void detach(CallSession prev){
+        if(prev==this) return;
+        if(prev==null) instance.remove(); else instance.set(prev);
+    }
+    /** makes calling thread the owner of the call stack, for hand off outside of attach(). */
+    public void claim(){
+        owner=Thread.currentThread();
+    }
+    public Thread getOwner(){
+        return owner;
+    }
+    private void checkOwner(){
+        Thread t=owner;
+        if(t!=null && t!=Thread.currentThread()){
+            throw new IllegalStateException("call stack owned by "+t.getName());
+        }
+    }
+    protected void enter(Processor c){
+        checkOwner();
+        if(depth==MAX_DEPTH) throw new IllegalStateException("call stack deeper than "+MAX_DEPTH);
+        callers[depth++]=c;
+    }
     protected void leave(Processor c){
-        int len=callers.size();
-        int at=len-1;
-        Processor last=len>0?callers.get(at):null;
-        if(c!=null && c==last){
-            callers.remove(len-1);
-        }else if(len>0 && (at=callers.indexOf(c))!=-1){
+        checkOwner();
+        if(depth==0) return;
+        if(c!=null && callers[depth-1]==c){
+            callers[--depth]=null;
+            return;
+        }
+        int at=depth-1;
+        while(at>=0 && callers[at]!=c) at--;
+        if(at>=0){
             // bad last is not same c, some processors have not left properly
+            Processor last;
             do{
-                last=callers.remove(callers.size()-1);
+                last=callers[--depth];
+                callers[depth]=null;
                 if(last!=null && last.isActive()){
                     try{
                         last.afterServe(request, response); // call after to ensure proper cleanup
@@ -143,20 +229,43 @@ public class CallSession implements Session{
             }while(last!=c);
         }
     }
+    /** writes to the app session, making it if needed. */
     @Override
     public void setValue(String key, Object val) {
-        if(appSession!=null) appSession.setValue(key, val);
+        Session ss=getAppSession();
+        if(ss!=null) ss.setValue(key, val);
     }
+    /** reads from the app session, one not made yet has no values. */
     @Override
     public Object getValue(String key) {
         return appSession!=null?appSession.getValue(key):null;
     }
     public void setAppSession(Session ss) {
         appSession=ss;
+        appSessionSource=null;
+    }
+    /** defers the app session, source makes it the first time getAppSession is called. */
+    public void setAppSessionSource(Supplier<? extends Session> source) {
+        appSession=null;
+        appSessionSource=source;
     }
+    /** the app session, made now if it was deferred. */
     public Session getAppSession() {
+        Session ss=appSession;
+        if(ss==null && appSessionSource!=null){
+            ss=appSession=appSessionSource.get();
+            appSessionSource=null;
+        }
+        return ss;
+    }
+    /** the app session if already made, never makes one. */
+    public Session peekAppSession() {
         return appSession;
     }
+    /** true if there is or can be an app session. */
+    public boolean hasAppSession() {
+        return appSession!=null || appSessionSource!=null;
+    }
     public Request getRequest() {
         return request;
     }
@@ -169,6 +278,10 @@ public class CallSession implements Session{
     public void setResponse(Response response) {
         this.response = response;
     }
+    /** sets what to run once the session is cleaned up, the owner of request and response recycles them here. */
+    public void setOnRelease(Runnable r){
+        onRelease=r;
+    }
     public Executor getExecutor() {
         return executor;
     }
@@ -176,10 +289,18 @@ public class CallSession implements Session{
         this.executor = executor;
     }
     public Processor getCaller() {
-        int len=callers.size();
-        return len>0?callers.get(len-1):null;
+        int d=depth;
+        return d>0?callers[d-1]:null;
+    }
+    public int getDepth(){
+        return depth;
     }
     public static ThreadLocal<CallSession> instance=new ThreadLocal<>();
+    /** Session travelling with the request, thread bound one if the request has none. */
+    public static CallSession of(Request req){
+        CallSession ret=req!=null?req.getSession():null;
+        return ret!=null?ret:getInstance();
+    }
     /**
      * Will return current session given the call stack.
      * @return thread local call session
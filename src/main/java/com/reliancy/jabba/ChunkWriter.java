@@ -0,0 +1,122 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Writer that gathers chars in a pooled chunk and hands each full chunk to a ResponseEncoder.
+ * Every handed chunk is flushed through so a large page starts going out while it is rendered
+ * instead of piling up as one String. Close passes on the rest and returns the chunk to the pool;
+ * the encoder itself is not closed.
+ * Chunk size (the flush threshold) is set globally, see Config.RENDER_CHUNK_SIZE.
+ */
+public class ChunkWriter extends Writer{
+    static final int POOL_MAX=64;
+    static final ConcurrentLinkedQueue<char[]> pool=new ConcurrentLinkedQueue<>();
+    static final AtomicInteger pooled=new AtomicInteger();
+    static volatile int chunkSize=16384;
+
+    final ResponseEncoder encoder;
+    char[] buf;
+    int count;
+
+    public ChunkWriter(ResponseEncoder encoder){
+        this.encoder=encoder;
+        buf=acquire();
+    }
+    public static int getChunkSize(){
+        return chunkSize;
+    }
+    /** sets chars gathered before a flush, pooled chunks of another size are dropped. */
+    public static void setChunkSize(int size){
+        if(size<=0) throw new IllegalArgumentException("chunk size:"+size);
+        chunkSize=size;
+        pool.clear();
+        pooled.set(0);
+    }
+    /** chunks waiting in the pool. */
+    public static int getPooled(){
+        return pooled.get();
+    }
+    static char[] acquire(){
+        char[] ret=pool.poll();
+        if(ret!=null){
+            pooled.decrementAndGet();
+            if(ret.length==chunkSize) return ret;
+        }
+        return new char[chunkSize];
+    }
+    static void release(char[] chunk){
+        if(chunk.length!=chunkSize) return;
+        if(pooled.incrementAndGet()>POOL_MAX){
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(chunk);
+    }
+    void ensureOpen() throws IOException{
+        if(buf==null) throw new IOException("writer closed");
+    }
+    /** hands gathered chars to the encoder and pushes them out. */
+    protected void spill() throws IOException{
+        if(count==0) return;
+        encoder.writeChars(buf,0,count);
+        count=0;
+        encoder.flush();
+    }
+    @Override
+    public void write(int c) throws IOException{
+        ensureOpen();
+        if(count==buf.length) spill();
+        buf[count++]=(char)c;
+    }
+    @Override
+    public void write(char[] cbuf,int off,int len) throws IOException{
+        ensureOpen();
+        while(len>0){
+            if(count==buf.length) spill();
+            int n=Math.min(len,buf.length-count);
+            System.arraycopy(cbuf,off,buf,count,n);
+            count+=n;
+            off+=n;
+            len-=n;
+        }
+    }
+    @Override
+    public void write(String str,int off,int len) throws IOException{
+        ensureOpen();
+        while(len>0){
+            if(count==buf.length) spill();
+            int n=Math.min(len,buf.length-count);
+            str.getChars(off,off+n,buf,count);
+            count+=n;
+            off+=n;
+            len-=n;
+        }
+    }
+    @Override
+    public void flush() throws IOException{
+        ensureOpen();
+        spill();
+    }
+    /** passes on what is left, the response is flushed when it completes. */
+    @Override
+    public void close() throws IOException{
+        if(buf==null) return;
+        try{
+            if(count>0) encoder.writeChars(buf,0,count);
+        }finally{
+            count=0;
+            release(buf);
+            buf=null;
+        }
+    }
+}
@@ -151,7 +151,22 @@ public interface Config extends Iterable<Config.Property<?>>{
     public static final Property<String> APP_CLASS=new Property<>("APP_CLASS",String.class);
     public static final Property<List> APP_ARGS=new Property<>("APP_ARGS",List.class);
     public static final Property<String> SECRET_KEY=new Property<>("SECRET_KEY",String.class);
+    public static final Property<Integer> AUTH_TOKEN_TTL=new Property<>("AUTH_TOKEN_TTL",Integer.class).setInitial(8*3600*1000);
     public static final Property<Integer> SERVER_PORT=new Property<>("SERVER_PORT",Integer.class).setInitial(8090);
+    public static final Property<Integer> ROUTE_CACHE_SIZE=new Property<>("ROUTE_CACHE_SIZE",Integer.class).setInitial(1024);
+    public static final Property<String> ASYNC_EXECUTOR=new Property<>("ASYNC_EXECUTOR",String.class).setInitial("server");
+    public static final Property<Boolean> SERVER_VIRTUAL_THREADS=new Property<>("SERVER_VIRTUAL_THREADS",Boolean.class).setInitial(false);
+    public static final Property<Integer> BODY_MAX_SIZE=new Property<>("BODY_MAX_SIZE",Integer.class).setInitial(1048576);
+    public static final Property<Integer> ASSET_CACHE_SIZE=new Property<>("ASSET_CACHE_SIZE",Integer.class).setInitial(32*1048576);
+    public static final Property<Integer> SESSION_MAX=new Property<>("SESSION_MAX",Integer.class).setInitial(100000);
+    public static final Property<Integer> SESSION_SWEEP_INTERVAL=new Property<>("SESSION_SWEEP_INTERVAL",Integer.class).setInitial(60000);
+    public static final Property<String> SESSION_STORE=new Property<>("SESSION_STORE",String.class).setInitial("heap");
+    public static final Property<Integer> SESSION_FLUSH_INTERVAL=new Property<>("SESSION_FLUSH_INTERVAL",Integer.class).setInitial(5000);
+    public static final Property<Integer> RENDER_CHUNK_SIZE=new Property<>("RENDER_CHUNK_SIZE",Integer.class).setInitial(16384);
+    public static final Property<Boolean> TEMPLATE_PRECOMPILE=new Property<>("TEMPLATE_PRECOMPILE",Boolean.class).setInitial(true);
+    public static final Property<Boolean> FILE_WATCH=new Property<>("FILE_WATCH",Boolean.class).setInitial(false);
+    public static final Property<Integer> RESOURCE_CACHE_TTL=new Property<>("RESOURCE_CACHE_TTL",Integer.class).setInitial(2000);
+    public static final Property<Integer> ASSET_CACHE_ENTRY_MAX=new Property<>("ASSET_CACHE_ENTRY_MAX",Integer.class).setInitial(1048576);
 
     public default Config getParent(){return null;};
     public Config clear();
@@ -6,15 +6,19 @@ You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en
 You may not use this file except in compliance with the License. 
 */
 package com.reliancy.jabba;
+import com.reliancy.util.ClockCache;
+import com.reliancy.util.FileWatcher;
 import com.reliancy.util.Handy;
-import com.reliancy.util.LRUCache;
 import com.reliancy.util.Resources;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.concurrent.CompletableFuture;
@@ -26,6 +30,12 @@ import org.slf4j.Logger;
  * TODO: We will need proper security.
  * TODO: We will also add in memory serving.
  * We have added cache control and etag support.
+ * Validators (ETag, Last-Modified) come from the file modification time, If-None-Match and
+ * If-Modified-Since answer 304 and a single Range (with If-Range) answers 206 from the file channel.
+ * Files on disk go out via Response.sendFile (no copy on jetty), jar entries are streamed.
+ * Small assets are kept in an AssetCache by request path with gzip/deflate variants, a hit skips
+ * resolving and reading the file. With a shared FileWatcher running, bucket folders are watched
+ * and changed files leave the cache right away.
  * Please note Router is for routing. 
  * Bucket is there to process input/output given verbs over resources under it.
  */
@@ -33,6 +43,8 @@ public class FileServer extends EndPoint implements AppModule,Resources.PathRewr
     /** Bucket interface to abstract i/o and provide easier extensibility. 
      * asContainer matches path and then returns local-to-packet path.
      * signature returns a hash over lastModified or content that reflects modification.
+     * locate returns the file on disk when there is one so it can be sent without copying,
+     * null means the resource is only reachable as a stream (jar, remote url).
     */
     public static interface Bucket{
         String getPrefix();
@@ -41,12 +53,15 @@ public class FileServer extends EndPoint implements AppModule,Resources.PathRewr
         InputStream openSource(String local_path,FileServer user) throws IOException;
         OutputStream openSink(String local_path,FileServer user) throws IOException;
         String signature(String local_path);
+        default Path locate(String local_path,FileServer user) throws IOException{
+            return null;
+        }
     }
     public static class FileBucket implements Bucket{
         final String prefix;
         String[] extAllowed;
         Object[] domain;
-        LRUCache<String,Long> hit_history=new LRUCache<>(2*Runtime.getRuntime().availableProcessors());
+        ClockCache<String,Long> hit_history=new ClockCache<>(256); // last modified of streamed entries
 
         public FileBucket(String prefix){
             this.prefix=prefix;
@@ -88,22 +103,32 @@ public class FileServer extends EndPoint implements AppModule,Resources.PathRewr
             if(f==null) return null; // skip if rpath not located
             URLConnection conn=f.openConnection();
             hit_history.put(local_path,conn.getLastModified()); // pull last modified for signature
-            return conn.getInputStream();
+            try{
+                return conn.getInputStream();
+            }catch(FileNotFoundException e){
+                return null; // gone since the lookup was remembered
+            }
+        }
+        @Override
+        public Path locate(String local_path,FileServer user) throws IOException{
+            URL f=Resources.findFirst(user,local_path,getDomain());
+            Path p=asPath(f);
+            if(p==null || !Files.isRegularFile(p)) return null;
+            return p;
         }
         public OutputStream openSink(String local_path,FileServer user) throws IOException{
             return null;
         }
         public String signature(String local_path){
             Long last_modified=hit_history.get(local_path);
-            if(last_modified==null) return null;
-            String sig=String.valueOf(last_modified);
-            return Handy.hashMD5(sig);
+            return last_modified!=null?etagOf(last_modified):null;
         }
     }
     final ArrayList<Bucket> buckets=new ArrayList<>();
     String diskPrefix;      // will be prefixed to source if file
     String classPrefix;     // will be prefixed to source if class
     String urlPrefix;       // will be prefixed to source if URL
+    AssetCache assets;      // created on first use sized from config
     public FileServer(String url_path,String offset,Object ... source){
         super(null);
         diskPrefix=classPrefix=offset;
@@ -124,6 +149,22 @@ public class FileServer extends EndPoint implements AppModule,Resources.PathRewr
         urlPrefix=offset;
         return this;
     }
+    public AssetCache getAssetCache(){
+        AssetCache ret=assets;
+        if(ret==null){
+            Config conf=getConfig();
+            Integer size=conf!=null?Config.ASSET_CACHE_SIZE.get(conf):null;
+            Integer max=conf!=null?Config.ASSET_CACHE_ENTRY_MAX.get(conf):null;
+            if(size==null) size=Config.ASSET_CACHE_SIZE.getInitial();
+            if(max==null) max=Config.ASSET_CACHE_ENTRY_MAX.getInitial();
+            assets=ret=new AssetCache(size,max);
+        }
+        return ret;
+    }
+    public FileServer setAssetCache(AssetCache cache){
+        assets=cache;
+        return this;
+    }
     /**
      * we prefix our path for disk and class contexts.
      */
@@ -143,27 +184,55 @@ public class FileServer extends EndPoint implements AppModule,Resources.PathRewr
         boolean atDebug=logger.isDebugEnabled();
         if(atDebug) logger.debug("{}:{}",verb,path);
         if(HTTP.VERB_GET.equals(verb)){
+            AssetCache cache=getAssetCache();
+            AssetCache.Asset asset=cache.get(path);
+            if(asset!=null){
+                sendAsset(asset,request,response);
+                return;
+            }
             for(Bucket bucket:buckets){
                 String local_path=bucket.asContained(path);
                 if(local_path==null) continue; // this bucket is not accepting
+                Path file=bucket.locate(local_path,this);
+                if(file!=null){
+                    long length=Files.size(file);
+                    long modified=Files.getLastModifiedTime(file).toMillis(); // before reading, a later change shows
+                    String etag=etagOf(modified);
+                    if(cache.accepts(length)){
+                        asset=cache.put(path,file,modified,etag,HTTP.ext2mime(local_path),Files.readAllBytes(file));
+                        if(asset!=null){
+                            sendAsset(asset,request,response);
+                            return;
+                        }
+                    }
+                    // plain file, handed over without passing through our streams
+                    if(notModified(etag,modified,request,response)) return;
+                    if(atDebug) logger.debug("\tfound file:"+file);
+                    response.setContentType(HTTP.ext2mime(local_path));
+                    long[] slice=prepareBody(request,response,etag,modified,length);
+                    if(slice!=null) response.sendFile(file,slice[0],slice[1]);
+                    return;
+                }
                 try(InputStream ins=bucket.openSource(local_path,this)){
                     if(ins==null) continue; // url did not take
                     String etag=bucket.signature(local_path);
-                    if(etag!=null){
-                        response.setHeader("Cache-Control","max-age=0, must-revalidate");
-                        response.setHeader("ETag",etag);
-                        String etag_old=request.getHeader("If-None-Match");
-                        if(etag.equals(etag_old)){
-                            // we got same etag no change
-                            response.setStatus(Response.HTTP_NOT_MODIFIED);
+                    String ctype=HTTP.ext2mime(local_path);
+                    byte[] head=null;
+                    if(cache.accepts(0)){
+                        // read up to the entry limit, if it all fits it is cached
+                        head=ins.readNBytes(cache.getMaxEntry()+1);
+                        asset=head.length<=cache.getMaxEntry()?cache.put(path,null,-1,etag,ctype,head):null;
+                        if(asset!=null){
+                            sendAsset(asset,request,response);
                             return;
                         }
                     }
+                    if(notModified(etag,-1,request,response)) return;
                     if(atDebug) logger.debug("\tfound:"+local_path);
-                    String ctype=HTTP.ext2mime(local_path);
                     response.setStatus(Response.HTTP_OK);
                     response.setContentType(ctype);
                     ResponseEncoder enc=response.getEncoder();
+                    if(head!=null) enc.writeBytes(head,0,head.length);
                     enc.writeStream(ins);
                     return; // we got something
                 }
@@ -175,12 +244,139 @@ public class FileServer extends EndPoint implements AppModule,Resources.PathRewr
         response.getEncoder().writeln("missing file:"+path);
         logger.error("not found:{}",path);
     }
+    /** sends a cached asset, compressed if the client takes it.
+     * range requests get a slice of the identity content.
+     * each encoding is its own representation with its own etag (see etagFor).
+     */
+    protected void sendAsset(AssetCache.Asset asset,Request request,Response response) throws IOException{
+        String coding=request.getHeader("Range")==null?asset.chooseEncoding(request.getHeader("Accept-Encoding")):null;
+        String etag=etagFor(asset.getETag(),coding);
+        if(asset.hasVariants()) response.setHeader("Vary","Accept-Encoding");
+        if(notModified(etag,asset.getModified(),request,response)) return;
+        byte[] body=asset.getContent(coding);
+        response.setContentType(asset.getMime());
+        if(coding!=null) response.setHeader("Content-Encoding",coding);
+        long[] slice=prepareBody(request,response,etag,asset.getModified(),body.length);
+        if(slice!=null) response.getEncoder().writeBytes(body,(int)slice[0],(int)slice[1]);
+    }
+    /** etag of the coding variant of a representation, identity keeps the plain one. */
+    public static String etagFor(String etag,String coding){
+        if(etag==null || coding==null || coding.equals("identity")) return etag;
+        switch(coding){
+            case "gzip": return etag+"-gz";
+            case "deflate": return etag+"-df";
+            default: return etag+"-"+coding;
+        }
+    }
+    /** etag we hand out for a given modification time. */
+    public static String etagOf(long modified){
+        return Handy.hashMD5(String.valueOf(modified));
+    }
+    /** sets validators and returns true (with 304 set) if the client copy is current.
+     * If-None-Match wins over If-Modified-Since, modified of 0 or less means unknown.
+     */
+    protected boolean notModified(String etag,long modified,Request request,Response response){
+        if(etag==null && modified<=0) return false;
+        response.setHeader("Cache-Control","max-age=0, must-revalidate");
+        if(etag!=null) response.setHeader("ETag",etag);
+        if(modified>0) response.setHeader("Last-Modified",HTTP.formatDate(modified));
+        boolean current;
+        String etag_old=request.getHeader("If-None-Match");
+        if(etag_old!=null){
+            current=etag!=null && matchesTag(etag_old,etag);
+        }else{
+            long since=HTTP.parseDate(request.getHeader("If-Modified-Since"));
+            current=modified>0 && since>=0 && modified/1000<=since/1000; // http dates have seconds only
+        }
+        if(current) response.setStatus(Response.HTTP_NOT_MODIFIED);
+        return current;
+    }
+    /** true if etag is in a comma list of (possibly quoted or weak) tags or the list is a star. */
+    static boolean matchesTag(String list,String etag){
+        for(String tag:list.split(",")){
+            tag=tag.trim();
+            if(tag.equals("*")) return true;
+            if(tag.startsWith("W/")) tag=tag.substring(2);
+            if(tag.length()>1 && tag.charAt(0)=='"' && tag.charAt(tag.length()-1)=='"') tag=tag.substring(1,tag.length()-1);
+            if(tag.equals(etag)) return true;
+        }
+        return false;
+    }
+    /** resolves a single byte range against length, honoring If-Range.
+     * returns null to send everything, an empty array if it can not be met, else {first,last}.
+     * multiple ranges are answered with the whole body.
+     */
+    static long[] range(Request request,String etag,long modified,long length){
+        String spec=request.getHeader("Range");
+        if(spec==null || !spec.startsWith("bytes=") || spec.indexOf(',')>=0) return null;
+        String cond=request.getHeader("If-Range");
+        if(cond!=null && !matchesTag(cond,String.valueOf(etag))){
+            long date=HTTP.parseDate(cond);
+            if(date<0 || modified<=0 || modified/1000!=date/1000) return null; // changed since, send it all
+        }
+        int dash=spec.indexOf('-');
+        if(dash<0) return null;
+        try{
+            String from=spec.substring(6,dash).trim();
+            String to=spec.substring(dash+1).trim();
+            long first,last;
+            if(from.isEmpty()){
+                long suffix=Long.parseLong(to); // last n bytes
+                if(suffix<=0 || length==0) return new long[0];
+                first=Math.max(0,length-suffix);
+                last=length-1;
+            }else{
+                first=Long.parseLong(from);
+                last=to.isEmpty()?length-1:Math.min(Long.parseLong(to),length-1);
+                if(first>=length) return new long[0];
+                if(last<first) return null;
+            }
+            return new long[]{first,last};
+        }catch(NumberFormatException e){
+            return null;
+        }
+    }
+    /** sets status, Content-Length and Content-Range for the whole body or the requested range.
+     * returns {offset,count} to send or null if the range can not be met (416 set).
+     */
+    protected static long[] prepareBody(Request request,Response response,String etag,long modified,long length){
+        response.setHeader("Accept-Ranges","bytes");
+        long[] r=range(request,etag,modified,length);
+        if(r==null){
+            response.setStatus(Response.HTTP_OK);
+            response.setHeader("Content-Length",String.valueOf(length));
+            return new long[]{0,length};
+        }
+        if(r.length==0){
+            response.setStatus(Response.HTTP_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range","bytes */"+length);
+            return null;
+        }
+        long count=r[1]-r[0]+1;
+        response.setStatus(Response.HTTP_PARTIAL_CONTENT);
+        response.setHeader("Content-Range","bytes "+r[0]+"-"+r[1]+"/"+length);
+        response.setHeader("Content-Length",String.valueOf(count));
+        return new long[]{r[0],count};
+    }
+    /** file behind a file: url, null for jar entries and other schemes. */
+    public static Path asPath(URL f){
+        return Resources.toPath(f);
+    }
     /**
      * Will render a URL resource to response.
      * @param f
      * @param response
      */
     public static boolean sendData(URL f, Response response) throws IOException{
+        Path file=asPath(f);
+        if(file!=null && Files.isRegularFile(file)){
+            long length=Files.size(file);
+            response.setStatus(Response.HTTP_OK);
+            response.setContentType(HTTP.guess_mime(f));
+            response.setHeader("Content-Length",String.valueOf(length));
+            response.sendFile(file,0,length);
+            return true;
+        }
         try(InputStream is=f.openStream()){
             if(is==null) return false;
             response.setStatus(Response.HTTP_OK);
@@ -219,6 +415,25 @@ public class FileServer extends EndPoint implements AppModule,Resources.PathRewr
     }
     public void publish(App app) {
         Router rep=app.getRouter();
+        setParent(rep); // so we see the app config
         for(Bucket b:buckets) rep.addRoute("GET",b.getPrefix()+".*",this);
+        AppSessionFilter sessions=app.getMiddleWare(AppSessionFilter.class);
+        if(sessions!=null) for(Bucket b:buckets) sessions.exclude(b.getPrefix()); // assets need no session
+        FileWatcher watcher=FileWatcher.getShared();
+        if(watcher!=null) watch(watcher);
+    }
+    /** registers bucket folders with watcher and drops cached assets as their files change. */
+    public FileServer watch(FileWatcher watcher){
+        for(Bucket b:buckets){
+            if(!(b instanceof FileBucket)) continue;
+            try{
+                watcher.registerAll(((FileBucket)b).getDomain());
+            }catch(IOException e){
+                log().warn("can not watch {}:{}",b.getPrefix(),e.getMessage());
+            }
+        }
+        AssetCache cache=getAssetCache();
+        watcher.addListener(cache::invalidate);
+        return this;
     }
 }
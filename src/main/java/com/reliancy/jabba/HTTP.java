@@ -9,8 +9,15 @@ package com.reliancy.jabba;
 
 import java.io.File;
 import java.net.URL;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 
+import com.reliancy.jabba.ui.Rendering;
+
 /** HTTP related methods and classes. 
  * 
 */
@@ -48,6 +55,19 @@ public final class HTTP {
             this(k,v,maxAge,sec,true);
         }
     }
+    /** formats epoch millis as an http date (Last-Modified etc). */
+    public static String formatDate(long millis){
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+    /** parses an http date to epoch millis, -1 if missing or malformed. */
+    public static long parseDate(String date){
+        if(date==null) return -1;
+        try{
+            return ZonedDateTime.parse(date.trim(),DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        }catch(DateTimeParseException e){
+            return -1;
+        }
+    }
     /** maps extension to mime type.
      * it will extract everything after last dot so we can pass a path too.
      * @param ext
@@ -98,6 +118,9 @@ public final class HTTP {
         if(ret instanceof byte[]){
             return MIME_BYTES;
         }
+        if(ret instanceof Rendering){
+            return MIME_HTML;
+        }
         if(ret instanceof File || ret instanceof URL || ret instanceof Path){
             String path=String.valueOf(ret);
             String ext=path.substring(path.lastIndexOf(".")+1).toLowerCase();
@@ -0,0 +1,382 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Session store in a memory mapped file so sessions outlive a restart and can be shared by
+ * processes on one host.
+ * The file is a small header followed by fixed size slots. A session hashes to a home slot and
+ * may sit in any of the PROBE slots after it. Saving takes a free or expired slot there, failing
+ * that the least active session of the run is evicted. lastActive has a fixed offset so a touch
+ * writes it in place. Touches come with every request so like SQLSessionStore they are only queued
+ * and flush writes them in one locked pass, other processes see activity one flush interval late.
+ * Writers (save, delete and flush) hold a lock on the file and bump a per slot sequence word to odd
+ * while they write and back to even after. Readers take no file lock, they read a slot between two
+ * looks at its sequence and try again if a writer got in the way; after SPINS tries they read
+ * under the file lock.
+ */
+public class MappedSessionStore implements AppSession.Store {
+    static final int MAGIC=0x4a425353; // JBSS
+    static final int VERSION=2;
+    static final int HEADER=16;
+    static final int PROBE=8;
+    static final int ID_MAX=64;
+    static final int SPINS=64;
+    // slot layout
+    static final int USED=0;
+    static final int SEQ=4;
+    static final int CREATED=8;
+    static final int ACTIVE=16;
+    static final int MAX_AGE=24;
+    static final int USER=32;
+    static final int ID_LEN=36;
+    static final int ID=38;
+    static final int DATA_LEN=ID+ID_MAX;
+    static final int DATA=DATA_LEN+4;
+    static final int NO_USER=Integer.MIN_VALUE;
+    static final VarHandle INTS=MethodHandles.byteBufferViewVarHandle(int[].class,ByteOrder.BIG_ENDIAN);
+    /** slot fields as read in one go. */
+    static final class Record{
+        long created;
+        long active;
+        long maxAge;
+        int user;
+        byte[] data;
+    }
+    static final Record BUSY=new Record();
+    private static final Logger logger=LoggerFactory.getLogger(MappedSessionStore.class);
+
+    final File file;
+    final int slots;
+    final int slotSize;
+    final FileChannel channel;
+    final MappedByteBuffer map;
+    final ReentrantReadWriteLock lock=new ReentrantReadWriteLock();
+    final ConcurrentHashMap<String,Long> touched=new ConcurrentHashMap<>();
+    ScheduledExecutorService flusher;
+
+    /** opens or creates file, an existing file must have the same geometry. */
+    public MappedSessionStore(File file,int slots,int slotSize) throws IOException{
+        if(slots<1) throw new IllegalArgumentException("need at least one slot");
+        if(slotSize<DATA+8) throw new IllegalArgumentException("slot size too small:"+slotSize);
+        if(slotSize%8!=0) throw new IllegalArgumentException("slot size must be a multiple of 8:"+slotSize);
+        this.file=file;
+        this.slots=slots;
+        this.slotSize=slotSize;
+        channel=FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.READ,StandardOpenOption.WRITE);
+        FileLock fl=null;
+        try{
+            fl=channel.lock();
+            boolean fresh=channel.size()==0;
+            long size=HEADER+(long)slots*slotSize;
+            if(size>Integer.MAX_VALUE) throw new IllegalArgumentException("session file too large:"+size);
+            map=channel.map(FileChannel.MapMode.READ_WRITE,0,size);
+            if(fresh){
+                map.putInt(0,MAGIC);
+                map.putInt(4,VERSION);
+                map.putInt(8,slots);
+                map.putInt(12,slotSize);
+            }else if(map.getInt(0)!=MAGIC || map.getInt(4)!=VERSION || map.getInt(8)!=slots || map.getInt(12)!=slotSize){
+                throw new IOException("not a session file of this geometry:"+file);
+            }
+        }catch(IOException|RuntimeException e){
+            if(channel.isOpen()) channel.close();
+            throw e;
+        }finally{
+            if(fl!=null && fl.isValid()) fl.release();
+        }
+    }
+    /** 4096 slots of 4k. */
+    public MappedSessionStore(File file) throws IOException{
+        this(file,4096,4096);
+    }
+    public File getFile(){
+        return file;
+    }
+    public int getSlots(){
+        return slots;
+    }
+    public int getSlotSize(){
+        return slotSize;
+    }
+    int home(String id){
+        int h=id.hashCode();
+        return ((h^(h>>>16))&0x7fffffff)%slots;
+    }
+    int offset(int slot){
+        return HEADER+slot*slotSize;
+    }
+    boolean holds(int off,byte[] id){
+        if(map.getInt(off+USED)==0) return false;
+        int len=map.getShort(off+ID_LEN);
+        if(len!=id.length) return false;
+        for(int i=0;i<len;i++) if(map.get(off+ID+i)!=id[i]) return false;
+        return true;
+    }
+    /** offset of the slot holding id or -1. */
+    int find(byte[] id,int home){
+        for(int i=0;i<PROBE && i<slots;i++){
+            int off=offset((home+i)%slots);
+            if(holds(off,id)) return off;
+        }
+        return -1;
+    }
+    int seq(int off){
+        return (int)INTS.getAcquire(map,off+SEQ);
+    }
+    /** marks slot as being written, returns the sequence to end with. */
+    int beginWrite(int off){
+        int s=(int)INTS.getVolatile(map,off+SEQ);
+        if((s&1)!=0) s++;  // left odd by a writer that died
+        INTS.setVolatile(map,off+SEQ,s+1);
+        VarHandle.storeStoreFence();
+        return s+2;
+    }
+    void endWrite(int off,int s){
+        INTS.setRelease(map,off+SEQ,s);
+    }
+    /** reads the slot holding id: null if none, BUSY if a writer got in the way. locked skips the checks. */
+    Record read(byte[] id,int home,boolean locked) throws IOException{
+        for(int i=0;i<PROBE && i<slots;i++){
+            int off=offset((home+i)%slots);
+            int s=seq(off);
+            if(!locked && (s&1)!=0) return BUSY;
+            if(!holds(off,id)){
+                VarHandle.loadLoadFence();
+                if(!locked && seq(off)!=s) return BUSY;
+                continue;
+            }
+            Record rec=new Record();
+            rec.created=map.getLong(off+CREATED);
+            rec.active=map.getLong(off+ACTIVE);
+            rec.maxAge=map.getLong(off+MAX_AGE);
+            rec.user=map.getInt(off+USER);
+            int len=map.getInt(off+DATA_LEN);
+            boolean bad=len<0 || DATA+len>slotSize;
+            if(!bad){
+                rec.data=new byte[len];
+                map.get(off+DATA,rec.data);
+            }
+            VarHandle.loadLoadFence();
+            if(!locked && seq(off)!=s) return BUSY;
+            if(bad) throw new IOException("corrupt session slot at "+off);
+            return rec;
+        }
+        return null;
+    }
+    /** takes the store's write lock and then the file lock, writers of other processes wait too. */
+    FileLock lockAll() throws IOException{
+        lock.writeLock().lock();
+        try{
+            return channel.lock();
+        }catch(IOException|RuntimeException e){
+            lock.writeLock().unlock();
+            throw e;
+        }
+    }
+    void unlockAll(FileLock fl) throws IOException{
+        try{
+            if(fl.isValid()) fl.release();
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+    static byte[] idBytes(String id) throws IOException{
+        byte[] b=id.getBytes(StandardCharsets.UTF_8);
+        if(b.length>ID_MAX) throw new IOException("session id too long:"+id);
+        return b;
+    }
+    @Override
+    public AppSession load(String id,App app,AppSession.Factory factory) throws IOException{
+        byte[] bid=idBytes(id);
+        int home=home(id);
+        Record rec=BUSY;
+        for(int i=0;i<SPINS && rec==BUSY;i++){
+            if(i>0) Thread.onSpinWait();
+            lock.readLock().lock();
+            try{
+                rec=read(bid,home,false);
+            }finally{
+                lock.readLock().unlock();
+            }
+        }
+        if(rec==BUSY){
+            FileLock fl=lockAll();
+            try{
+                rec=read(bid,home,true);
+            }finally{
+                unlockAll(fl);
+            }
+        }
+        if(rec==null) return null;
+        Long pending=touched.get(id);
+        if(pending!=null && pending>rec.active) rec.active=pending;
+        AppSession ss=factory.create(id,app);
+        ss.restore(rec.created,rec.active,rec.maxAge,rec.user!=NO_USER?rec.user:null,SessionCodec.decode(rec.data));
+        ss.setStore(this);
+        return ss;
+    }
+    @Override
+    public void save(AppSession ss) throws IOException{
+        byte[] bid=idBytes(ss.getId());
+        byte[] data=SessionCodec.encode(ss.getValues());
+        if(DATA+data.length>slotSize) throw new IOException("session "+ss.getId()+" too large for slot:"+data.length);
+        int home=home(ss.getId());
+        FileLock fl=lockAll();
+        try{
+            int off=find(bid,home);
+            if(off<0) off=claim(home);
+            int s=beginWrite(off);
+            map.putLong(off+CREATED,ss.getTimeCreated());
+            map.putLong(off+ACTIVE,ss.getLastActive());
+            map.putLong(off+MAX_AGE,ss.getMaxAge());
+            Integer user=ss.getUserId();
+            map.putInt(off+USER,user!=null?user:NO_USER);
+            map.putShort(off+ID_LEN,(short)bid.length);
+            map.put(off+ID,bid);
+            map.putInt(off+DATA_LEN,data.length);
+            map.put(off+DATA,data);
+            map.putInt(off+USED,1);
+            endWrite(off,s);
+        }finally{
+            unlockAll(fl);
+        }
+        touched.remove(ss.getId(),ss.getLastActive());
+    }
+    /** free or expired slot of the run, else the least active one. */
+    int claim(int home){
+        long now=System.currentTimeMillis();
+        int victim=-1;
+        long oldest=Long.MAX_VALUE;
+        for(int i=0;i<PROBE && i<slots;i++){
+            int off=offset((home+i)%slots);
+            if(map.getInt(off+USED)==0) return off;
+            long active=map.getLong(off+ACTIVE);
+            if(now-active>map.getLong(off+MAX_AGE)) return off;
+            if(active<oldest){
+                oldest=active;
+                victim=off;
+            }
+        }
+        return victim;
+    }
+    @Override
+    public void delete(String id) throws IOException{
+        byte[] bid=idBytes(id);
+        touched.remove(id);
+        FileLock fl=lockAll();
+        try{
+            int off=find(bid,home(id));
+            if(off>=0){
+                int s=beginWrite(off);
+                map.putInt(off+USED,0);
+                endWrite(off,s);
+            }
+        }finally{
+            unlockAll(fl);
+        }
+    }
+    @Override
+    public void touch(AppSession ss){
+        touched.merge(ss.getId(),ss.getLastActive(),Math::max);
+    }
+    /** touches waiting for the flusher. */
+    public int getPending(){
+        return touched.size();
+    }
+    /** sessions held now, a full scan meant for tests and reports. */
+    public int size(){
+        int count=0;
+        lock.readLock().lock();
+        try{
+            for(int i=0;i<slots;i++) if(map.getInt(offset(i)+USED)!=0) count++;
+        }finally{
+            lock.readLock().unlock();
+        }
+        return count;
+    }
+    /** writes queued touches in one locked pass and dirty pages to disk, returns how many touches went out. */
+    public int flush() throws IOException{
+        int n=0;
+        if(!touched.isEmpty()){
+            FileLock fl=lockAll();
+            try{
+                for(Map.Entry<String,Long> e:touched.entrySet()){
+                    long active=e.getValue();
+                    byte[] bid=e.getKey().getBytes(StandardCharsets.UTF_8);
+                    int off=bid.length<=ID_MAX?find(bid,home(e.getKey())):-1;
+                    if(off>=0 && map.getLong(off+ACTIVE)<active){
+                        int s=beginWrite(off);
+                        map.putLong(off+ACTIVE,active);
+                        endWrite(off,s);
+                    }
+                    touched.remove(e.getKey(),active); // a newer touch stays queued
+                    n++;
+                }
+            }finally{
+                unlockAll(fl);
+            }
+        }
+        map.force();
+        return n;
+    }
+    /** flushes every interval millis on a daemon thread. 0 or less stops. */
+    public synchronized MappedSessionStore startFlusher(long interval){
+        stopFlusher();
+        if(interval<=0) return this;
+        flusher=Executors.newSingleThreadScheduledExecutor(r->{
+            Thread t=new Thread(r,"session-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(()->{
+            try{
+                flush();
+            }catch(IOException|RuntimeException e){
+                logger.error("session flush failed:",e);
+            }
+        },interval,interval,TimeUnit.MILLISECONDS);
+        return this;
+    }
+    public synchronized void stopFlusher(){
+        if(flusher!=null) flusher.shutdownNow();
+        flusher=null;
+    }
+    @Override
+    public void close() throws IOException{
+        stopFlusher();
+        if(channel.isOpen()) flush();
+        lock.writeLock().lock();
+        try{
+            if(!channel.isOpen()) return;
+            map.force();
+            channel.close();
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -8,26 +8,50 @@ You may not use this file except in compliance with the License.
 package com.reliancy.jabba;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Parameter;
 import java.util.ArrayList;
 import java.util.concurrent.CompletableFuture;
 
 import com.reliancy.jabba.decor.Async;
+import com.reliancy.jabba.decor.Param;
 import com.reliancy.jabba.decor.Routed;
 import com.reliancy.jabba.decor.WebSocket;
 import com.reliancy.util.Handy;
 
+/** Endpoint that serves a request by calling a @Routed method.
+ * The method is bound once at import time to a MethodHandle (bound to target and adapted
+ * to the invoke type) so dispatch is a direct invokeExact call and not Method.invoke.
+ * For methods taking arguments the handle also carries one ParamDecoder per parameter,
+ * so arguments are decoded and passed without an argument array or boxing.
+ * Exceptions thrown by the method arrive unwrapped, checked ones other than IOException
+ * are wrapped in IOException.
+ */
 public class MethodEndPoint extends EndPoint{
+    /** handle types used with invokeExact for each invoke type. */
+    static final MethodType TYPE_PLAIN=MethodType.methodType(void.class,Request.class,Response.class);
+    static final MethodType TYPE_NOARG=MethodType.methodType(Object.class);
+    static final MethodType TYPE_FULL=MethodType.methodType(Object.class,Request.class,Response.class);
+    static final MethodType TYPE_WEBSOCKET=MethodType.methodType(void.class,WebSocketSession.class);
+
+    static IOException rethrow(Throwable ex){
+        if(ex instanceof IOException) return (IOException)ex;
+        if(ex instanceof RuntimeException) throw (RuntimeException)ex;
+        if(ex instanceof Error) throw (Error)ex;
+        return new IOException(ex);
+    }
     // Inner Servant classes for each invoke type
     private final Servant INVOKE_PLAIN = new Servant() {
         @Override
         public void serve(Request request, Response response) throws IOException {
             try {
-                method.invoke(target, request, response);
-            } catch (Exception ex) {
-                if(ex instanceof IOException) throw ((IOException)ex);
-                else throw new IOException(ex);
+                handle.invokeExact(request, response);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
             }
         }
     };
@@ -35,27 +59,26 @@ public class MethodEndPoint extends EndPoint{
     private final Servant INVOKE_NOARG = new Servant() {
         @Override
         public void serve(Request request, Response response) throws IOException {
+            Object ret;
             try {
-                Object ret = method.invoke(target);
-                encodeResponse(ret, response);
-            } catch (Exception ex) {
-                if(ex instanceof IOException) throw ((IOException)ex);
-                else throw new IOException(ex);
+                ret = (Object) handle.invokeExact();
+            } catch (Throwable ex) {
+                throw rethrow(ex);
             }
+            encodeResponse(ret, response);
         }
     };
     
     private final Servant INVOKE_FULL = new Servant() {
         @Override
         public void serve(Request request, Response response) throws IOException {
+            Object ret;
             try {
-                Object[] argVals = decodeRequest(request);
-                Object ret = method.invoke(target, argVals);
-                encodeResponse(ret, response);
-            } catch (Exception ex) {
-                if(ex instanceof IOException) throw ((IOException)ex);
-                else throw new IOException(ex);
+                ret = (Object) handle.invokeExact(request, response);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
             }
+            encodeResponse(ret, response);
         }
     };
     
@@ -64,7 +87,7 @@ public class MethodEndPoint extends EndPoint{
         public void serve(Request request, Response response) throws IOException {
             try {
                 // 1. Get AppSession from CallSession (set by middleware during upgrade request)
-                CallSession cs = CallSession.getInstance();
+                CallSession cs = CallSession.of(request);
                 Session appSession = cs != null ? cs.getAppSession() : null;
                 
                 // 2. Get route path for this WebSocket endpoint
@@ -76,15 +99,14 @@ public class MethodEndPoint extends EndPoint{
                 
                 // 4. Invoke user method to setup callbacks
                 //    User method signature: void methodName(WebSocketSession session)
-                method.invoke(target, wsSession);
+                handle.invokeExact(wsSession);
                 
                 // 5. Don't complete response - WebSocket connection stays open
                 //    CallSession.end() will happen in finally block but WebSocketSession lives on
                 //    TODO: Verify response handling - should we mark as async or handled differently?
                 
-            } catch (Exception ex) {
-                if(ex instanceof IOException) throw ((IOException)ex);
-                else throw new IOException(ex);
+            } catch (Throwable ex) {
+                throw rethrow(ex);
             }
         }
     };
@@ -95,6 +117,8 @@ public class MethodEndPoint extends EndPoint{
     Parameter[] params;
     Class<?> retType;
     Servant invokeType;
+    ParamDecoder[] decoders;    // one per param, used by INVOKE_FULL
+    MethodHandle handle;        // method bound to target, typed for invokeType
     ArrayList<MethodDecorator> decorators=new ArrayList<>();
     
     
@@ -127,8 +151,59 @@ public class MethodEndPoint extends EndPoint{
         }
         // Auto-detect async from @Async annotation OR CompletableFuture return type
         setAsync(m.getAnnotation(Async.class) != null || CompletableFuture.class.isAssignableFrom(retType));
+        bindDecoders();
+        bindHandle();
         bindDecorators();
     }
+    /** resolves method into a handle bound to target and adapted to the invoke type.
+     * done once here so each call skips access checks, argument array checks and
+     * InvocationTargetException wrapping of Method.invoke.
+     */
+    protected final void bindHandle(){
+        MethodType type=TYPE_FULL;
+        if(invokeType==INVOKE_PLAIN) type=TYPE_PLAIN;
+        if(invokeType==INVOKE_NOARG) type=TYPE_NOARG;
+        if(invokeType==INVOKE_WEBSOCKET) type=TYPE_WEBSOCKET;
+        try{
+            try{
+                method.setAccessible(true);
+            }catch(RuntimeException ex){
+                // not open to us, unreflect below decides if it is still callable
+            }
+            MethodHandle mh=MethodHandles.lookup().unreflect(method);
+            if(!Modifier.isStatic(method.getModifiers())) mh=mh.bindTo(target);
+            if(type==TYPE_FULL) mh=foldDecoders(mh);
+            handle=mh.asType(type);
+        }catch(IllegalAccessException ex){
+            throw new RuntimeException("@Routed method is not accessible: "+method,ex);
+        }
+    }
+    /** builds the decoder of each parameter, their source is fixed against the route params. */
+    protected final void bindDecoders(){
+        String[] routeParams=route!=null?new RouteDetector(getVerb(),getPath()).getParamNames():new String[0];
+        decoders=new ParamDecoder[params.length];
+        int bodies=0;
+        for(int i=0;i<params.length;i++){
+            decoders[i]=ParamDecoder.of(this,params[i],i,routeParams);
+            if(decoders[i].getSource()==Param.Source.BODY) bodies++;
+        }
+        if(bodies>1 && invokeType==INVOKE_FULL){
+            throw new RuntimeException("@Routed method can bind the request body to one parameter only: "+method.getName());
+        }
+    }
+    /** replaces each argument of mh with its decoder handle, result takes (Request,Response) once. */
+    MethodHandle foldDecoders(MethodHandle mh){
+        int n=decoders.length;
+        for(int i=n-1;i>=0;i--){
+            mh=MethodHandles.collectArguments(mh,i,decoders[i].toHandle());
+        }
+        int[] reorder=new int[2*n];
+        for(int i=0;i<n;i++) reorder[2*i+1]=1;
+        return MethodHandles.permuteArguments(mh,MethodType.methodType(mh.type().returnType(),Request.class,Response.class),reorder);
+    }
+    public ParamDecoder[] getDecoders(){
+        return decoders;
+    }
     public String getVerb(){
         return route.verb();
     }
@@ -173,17 +248,11 @@ public class MethodEndPoint extends EndPoint{
             invokeType.serve(request, response);
         }
     }
-    protected Object[] decodeRequest(Request request){
-        Object[] argVals=new Object[params.length];
+    /** decodes all arguments into an array, the handle does not need this but it is handy for inspection. */
+    protected Object[] decodeRequest(Request request,Response response){
+        Object[] argVals=new Object[decoders.length];
         for(int i=0;i<argVals.length;i++){
-            Parameter p=params[i];
-            Class<?> cls=p.getType();
-            String byName=p.getName();
-            String byPos="_arg"+i;
-            Object val=request.getParam(byName,request.getParam(byPos,null)); // get by name or pos
-            // Validate input before normalization
-            val=validateInput(val,cls,byName);
-            argVals[i]=Handy.normalize(cls,val);
+            argVals[i]=decoders[i].decode(request,response);
         }
         return argVals;
     }
@@ -246,8 +315,8 @@ public class MethodEndPoint extends EndPoint{
             @SuppressWarnings("unchecked")
             CompletableFuture<Object> future = (CompletableFuture<Object>)ret;
             
-            // Check if we can go async - we are not using isAsync here
-            if(request.goAsync()) {
+            // Check if we can go async, or the endpoint already went (reading the body for instance)
+            if(request.isAsync() || request.goAsync()) {
                 // we can go async
                 // Chain the future directly - NO BLOCKING!
                 response.promiseFirst(v -> future)  // Returns the future, Response will flatten it
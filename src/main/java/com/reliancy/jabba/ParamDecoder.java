@@ -0,0 +1,470 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import com.reliancy.jabba.decor.Param;
+import com.reliancy.jabba.decor.Param.Source;
+import com.reliancy.dbo.DBO;
+import com.reliancy.rec.Hdr;
+import com.reliancy.rec.JSON;
+import com.reliancy.rec.Rec;
+import com.reliancy.rec.Slot;
+import com.reliancy.util.Handy;
+
+/** Turns a request value into one argument of a @Routed method.
+ * MethodEndPoint builds one decoder per parameter at import. The subclass is picked by parameter
+ * type and the source (path position, query, header or cookie) is fixed then, so a call does
+ * no class tests and no lookups it does not need.
+ * Rec and DBO parameters bind the JSON request body, other objects do when marked @Param(from=BODY).
+ * Each decoder also offers a typed handle (Request,Response)T which the endpoint folds into its
+ * method handle, primitives are parsed straight into the call without boxing.
+ */
+public abstract class ParamDecoder {
+    public static final int MAX_LENGTH=100000;
+
+    final MethodEndPoint owner;
+    final String name;
+    final Class<?> type;
+    final Source source;
+    final int pathIndex;        // position among route params, -1 if none
+
+    protected ParamDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+        this.owner=owner;
+        this.name=name;
+        this.type=type;
+        this.source=source;
+        this.pathIndex=pathIndex;
+    }
+    /** picks decoder for a parameter.
+     * @param owner endpoint the parameter belongs to
+     * @param p method parameter
+     * @param pos position of the parameter
+     * @param routeParams lower case param names of the route
+     */
+    public static ParamDecoder of(MethodEndPoint owner,Parameter p,int pos,String[] routeParams){
+        Param ann=p.getAnnotation(Param.class);
+        String name=ann!=null && !ann.value().isEmpty()?ann.value():p.getName();
+        Source src=ann!=null?ann.from():Source.ANY;
+        int pathIndex=-1;
+        for(int i=0;i<routeParams.length;i++){
+            if(routeParams[i].equalsIgnoreCase(name)) pathIndex=i;
+        }
+        Class<?> cls=p.getType();
+        if(src==Source.ANY && pathIndex>=0) src=Source.PATH;
+        if(src==Source.ANY && isBodyType(cls)) src=Source.BODY;
+        if(pathIndex<0 && (src==Source.ANY || src==Source.PATH)) pathIndex=pos; // legacy by position
+        if(cls==Request.class || cls==Response.class) return new ContextDecoder(owner,name,cls);
+        if(src==Source.BODY) return new BodyDecoder(owner,name,cls);
+        if(cls==int.class || cls==Integer.class) return new IntDecoder(owner,name,cls,src,pathIndex);
+        if(cls==long.class || cls==Long.class) return new LongDecoder(owner,name,cls,src,pathIndex);
+        if(cls==double.class || cls==Double.class) return new DoubleDecoder(owner,name,cls,src,pathIndex);
+        if(cls==boolean.class || cls==Boolean.class) return new BooleanDecoder(owner,name,cls,src,pathIndex);
+        if(cls==String.class || cls==CharSequence.class) return new StringDecoder(owner,name,cls,src,pathIndex);
+        if(cls==String[].class) return new ArrayDecoder(owner,name,cls,src,pathIndex);
+        if(cls.isEnum()) return new EnumDecoder(owner,name,cls,src,pathIndex);
+        if(Rec.class.isAssignableFrom(cls)) return new RecDecoder(owner,name,cls,src,pathIndex);
+        return new GenericDecoder(owner,name,cls,src,pathIndex);
+    }
+    /** true for types that bind the body without being asked: records and DBOs. */
+    static boolean isBodyType(Class<?> cls){
+        return Rec.class.isAssignableFrom(cls) || DBO.class.isAssignableFrom(cls);
+    }
+    /** converts a decoded JSON value to cls, records go into DBO or object fields by name. */
+    static Object bind(Class<?> cls,Object val){
+        if(val==null || cls.isInstance(val)) return val;
+        if(val instanceof Number){
+            Number n=(Number)val;
+            if(cls==int.class || cls==Integer.class) return n.intValue();
+            if(cls==long.class || cls==Long.class) return n.longValue();
+            if(cls==double.class || cls==Double.class) return n.doubleValue();
+            if(cls==float.class || cls==Float.class) return n.floatValue();
+            if(cls==short.class || cls==Short.class) return n.shortValue();
+            if(cls==byte.class || cls==Byte.class) return n.byteValue();
+        }
+        if(val instanceof Rec) return bindRec(cls,(Rec)val);
+        if(val instanceof CharSequence){
+            String str=val.toString();
+            if(cls.isEnum()){
+                for(Object c:cls.getEnumConstants()){
+                    if(((Enum<?>)c).name().equalsIgnoreCase(str)) return c;
+                }
+                throw new IllegalArgumentException("invalid value for "+cls.getSimpleName()+":"+str);
+            }
+            return Handy.normalize(cls,str);
+        }
+        return Handy.normalize(cls,val);
+    }
+    static Object bindRec(Class<?> cls,Rec rec){
+        if(rec.isArray()) throw new IllegalArgumentException("cannot bind array to "+cls.getName());
+        try{
+            Object ret=cls.getDeclaredConstructor().newInstance();
+            if(ret instanceof DBO){
+                DBO dbo=(DBO)ret;
+                Hdr meta=dbo.meta();
+                for(int i=0;i<rec.count();i++){
+                    Slot s=meta!=null?meta.getSlot(rec.getSlot(i).getName(),false):null;
+                    if(s==null) continue;
+                    dbo.set(s,bind(s.getType()!=null?s.getType():Object.class,rec.get(i)));
+                }
+            }else{
+                HashMap<String,Field> fields=FIELDS.get(cls);
+                for(int i=0;i<rec.count();i++){
+                    Field f=fields.get(rec.getSlot(i).getName().toLowerCase());
+                    if(f!=null) f.set(ret,bind(f.getType(),rec.get(i)));
+                }
+            }
+            return ret;
+        }catch(ReflectiveOperationException ex){
+            throw new IllegalArgumentException("cannot bind body to "+cls.getName(),ex);
+        }
+    }
+    /** instance fields by lower case name, own fields shadow inherited ones. */
+    static final ClassValue<HashMap<String,Field>> FIELDS=new ClassValue<HashMap<String,Field>>(){
+        @Override
+        protected HashMap<String,Field> computeValue(Class<?> cls){
+            HashMap<String,Field> ret=new HashMap<>();
+            for(Class<?> c=cls;c!=null && c!=Object.class;c=c.getSuperclass()){
+                for(Field f:c.getDeclaredFields()){
+                    int mod=f.getModifiers();
+                    if(Modifier.isStatic(mod) || Modifier.isTransient(mod) || Modifier.isFinal(mod)) continue;
+                    try{
+                        f.setAccessible(true);
+                    }catch(RuntimeException ex){
+                        continue;
+                    }
+                    ret.putIfAbsent(f.getName().toLowerCase(),f);
+                }
+            }
+            return ret;
+        }
+    };
+    public String getName(){
+        return name;
+    }
+    public Class<?> getType(){
+        return type;
+    }
+    public Source getSource(){
+        return source;
+    }
+    /** decodes value as an object, primitives come boxed. */
+    public abstract Object decode(Request req,Response resp);
+    /** returns handle of type (Request,Response)T with T the parameter type. */
+    public MethodHandle toHandle(){
+        return bind("decode",Object.class).asType(MethodType.methodType(type,Request.class,Response.class));
+    }
+    protected final MethodHandle bind(String method,Class<?> ret){
+        try{
+            MethodType mt=MethodType.methodType(ret,Request.class,Response.class);
+            return MethodHandles.lookup().findVirtual(getClass(),method,mt).bindTo(this);
+        }catch(NoSuchMethodException | IllegalAccessException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+    /** raw value from the fixed source, String or String[] or null. */
+    protected Object raw(Request req){
+        switch(source){
+            case PATH:
+                return req.getPathParam(pathIndex);
+            case QUERY:
+                return req.getQueryParam(name);
+            case HEADER:
+                return req.getHeader(name);
+            case COOKIE:
+                return req.getCookie(name,null);
+            default:
+                Object ret=req.getQueryParam(name);
+                if(ret==null) ret=req.getHeader(name);
+                if(ret==null) ret=req.getCookie(name,null);
+                if(ret==null && pathIndex>=0) ret=req.getPathParam(pathIndex);
+                return ret;
+        }
+    }
+    /** single text value, first one if many, cut to MAX_LENGTH. */
+    protected String text(Request req){
+        Object val=raw(req);
+        if(val instanceof String[]){
+            String[] arr=(String[])val;
+            val=arr.length>0?arr[0]:null;
+        }
+        if(val==null) return null;
+        String ret=val.toString();
+        if(ret.length()>MAX_LENGTH){
+            owner.log().warn("Input parameter '{}' exceeds maximum length, truncated",name);
+            ret=ret.substring(0,MAX_LENGTH);
+        }
+        return ret;
+    }
+    /** same notion of missing as Handy.normalize. */
+    static boolean isEmpty(String val){
+        return val==null || val.isEmpty() || val.equals("''") || val.equals("\"\"");
+    }
+    protected IllegalArgumentException missing(){
+        return new IllegalArgumentException("missing parameter:"+name);
+    }
+    protected IllegalArgumentException invalid(String val){
+        return new IllegalArgumentException("invalid value for parameter "+name+":"+val);
+    }
+
+    /** hands over request or response itself. */
+    static final class ContextDecoder extends ParamDecoder{
+        ContextDecoder(MethodEndPoint owner,String name,Class<?> type){
+            super(owner,name,type,Source.ANY,-1);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            return type==Request.class?req:resp;
+        }
+    }
+    static final class IntDecoder extends ParamDecoder{
+        IntDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        int decodeInt(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)) throw missing();
+            return Integer.parseInt(val);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)){
+                if(type.isPrimitive()) throw missing();
+                return null;
+            }
+            return Integer.parseInt(val);
+        }
+        @Override
+        public MethodHandle toHandle(){
+            return type==int.class?bind("decodeInt",int.class):super.toHandle();
+        }
+    }
+    static final class LongDecoder extends ParamDecoder{
+        LongDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        long decodeLong(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)) throw missing();
+            return Long.parseLong(val);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)){
+                if(type.isPrimitive()) throw missing();
+                return null;
+            }
+            return Long.parseLong(val);
+        }
+        @Override
+        public MethodHandle toHandle(){
+            return type==long.class?bind("decodeLong",long.class):super.toHandle();
+        }
+    }
+    static final class DoubleDecoder extends ParamDecoder{
+        DoubleDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        double decodeDouble(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)) throw missing();
+            return Double.parseDouble(val);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)){
+                if(type.isPrimitive()) throw missing();
+                return null;
+            }
+            return Double.parseDouble(val);
+        }
+        @Override
+        public MethodHandle toHandle(){
+            return type==double.class?bind("decodeDouble",double.class):super.toHandle();
+        }
+    }
+    static final class BooleanDecoder extends ParamDecoder{
+        BooleanDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        boolean decodeBoolean(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)) throw missing();
+            return Boolean.parseBoolean(val);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)){
+                if(type.isPrimitive()) throw missing();
+                return null;
+            }
+            return Boolean.parseBoolean(val);
+        }
+        @Override
+        public MethodHandle toHandle(){
+            return type==boolean.class?bind("decodeBoolean",boolean.class):super.toHandle();
+        }
+    }
+    static final class StringDecoder extends ParamDecoder{
+        StringDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            return text(req);
+        }
+    }
+    /** multi valued query params, a single value becomes a one element array. */
+    static final class ArrayDecoder extends ParamDecoder{
+        ArrayDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            Object val=raw(req);
+            if(val==null) return null;
+            if(!(val instanceof String[])) val=new String[]{val.toString()};
+            return owner.validateInput(val,type,name);
+        }
+    }
+    /** matches constant name exactly first, then ignoring case. */
+    static final class EnumDecoder extends ParamDecoder{
+        final HashMap<String,Object> constants=new HashMap<>();
+
+        EnumDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+            for(Object c:type.getEnumConstants()){
+                String key=((Enum<?>)c).name();
+                constants.putIfAbsent(key.toUpperCase(),c);
+                constants.put(key,c);
+            }
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)) return null;
+            Object ret=constants.get(val);
+            if(ret==null) ret=constants.get(val.toUpperCase());
+            if(ret==null) throw invalid(val);
+            return ret;
+        }
+    }
+    /** parses value given as JSON text. */
+    static final class RecDecoder extends ParamDecoder{
+        RecDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            String val=text(req);
+            if(isEmpty(val)) return null;
+            Rec ret=JSON.reads(val);
+            if(!type.isInstance(ret)) throw invalid(val);
+            return ret;
+        }
+    }
+    /** binds the JSON request body. It is decoded as it streams in and capped at BODY_MAX_SIZE bytes. */
+    static final class BodyDecoder extends ParamDecoder{
+        BodyDecoder(MethodEndPoint owner,String name,Class<?> type){
+            super(owner,name,type,Source.BODY,-1);
+        }
+        int getMaxSize(){
+            Config conf=owner.getConfig();
+            Integer ret=conf!=null?Config.BODY_MAX_SIZE.get(conf):null;
+            return ret!=null?ret:Config.BODY_MAX_SIZE.getInitial();
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            int max=getMaxSize();
+            if(max>0 && req.getContentLength()>max) throw tooLarge(resp,max);
+            BoundedStream in=null;
+            Rec rec;
+            try{
+                InputStream body=req.getBodyStream();
+                if(body==null) return null;
+                in=new BoundedStream(body,max);
+                rec=JSON.reads(new InputStreamReader(in,StandardCharsets.UTF_8));
+            }catch(IOException ex){
+                if(in!=null && in.exceeded) throw tooLarge(resp,max);
+                throw new UncheckedIOException(ex);
+            }
+            if(in.count==0) return null;
+            return bind(type,rec);
+        }
+        IllegalArgumentException tooLarge(Response resp,int max){
+            if(resp!=null) resp.setStatus(Response.HTTP_PAYLOAD_TOO_LARGE);
+            return new IllegalArgumentException("request body exceeds "+max+" bytes");
+        }
+    }
+    /** counts bytes passing through and fails once more than max went by. */
+    static final class BoundedStream extends FilterInputStream{
+        final long max;
+        long count;
+        boolean exceeded;
+
+        BoundedStream(InputStream in,long max){
+            super(in);
+            this.max=max;
+        }
+        @Override
+        public int read() throws IOException{
+            int ret=super.read();
+            if(ret>=0) advance(1);
+            return ret;
+        }
+        @Override
+        public int read(byte[] buf,int off,int len) throws IOException{
+            int ret=super.read(buf,off,len);
+            if(ret>0) advance(ret);
+            return ret;
+        }
+        @Override
+        public long skip(long n) throws IOException{
+            long ret=super.skip(n);
+            if(ret>0) advance(ret);
+            return ret;
+        }
+        void advance(long n) throws IOException{
+            count+=n;
+            if(max>0 && count>max){
+                exceeded=true;
+                throw new IOException("input exceeds "+max+" bytes");
+            }
+        }
+    }
+    /** anything else goes through validateInput and Handy.normalize as before. */
+    static final class GenericDecoder extends ParamDecoder{
+        GenericDecoder(MethodEndPoint owner,String name,Class<?> type,Source source,int pathIndex){
+            super(owner,name,type,source,pathIndex);
+        }
+        @Override
+        public Object decode(Request req,Response resp){
+            Object val=owner.validateInput(raw(req),type,name);
+            val=Handy.normalize(type,val);
+            if(val==null && type.isPrimitive()) throw missing();
+            return val;
+        }
+    }
+}
@@ -82,16 +82,16 @@ public abstract class Processor implements Servant {
      * @throws IOException
      */
     protected void process(Request request,Response response) throws IOException {
-        final CallSession ss=CallSession.getInstance();
+        final CallSession ss=CallSession.of(request);
         // now we must account for async downstream
         final Processor thisProcessor=this;
-        ss.enter(thisProcessor);
         if(!active){
             if(next!=null){
                 next.process(request, response);
                 return;
             }
         }else{
+            ss.enter(thisProcessor);
             beforeServe(request, response);
             serve(request, response);
             if(response.isPromised()==false){
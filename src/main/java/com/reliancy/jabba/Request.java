@@ -8,6 +8,8 @@ You may not use this file except in compliance with the License.
 package com.reliancy.jabba;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,13 +18,20 @@ import java.util.Map;
  * Provides container-agnostic access to request properties.
  */
 public abstract class Request {
-    protected final HashMap<String,String> pathParams=new HashMap<>();
+    protected RouteMatch route;
     protected String pathOverride;
     protected Runnable finisher;
     protected CallSession session;
+    static final Runnable NO_FINISHER=()->{};
 
     public Request() {
-        finisher = () -> {};
+        finisher = NO_FINISHER;
+    }
+    /** clears per request state so the object can serve another request, the session is kept. */
+    protected void reset(){
+        if(route!=null) route.reset();
+        pathOverride=null;
+        finisher=NO_FINISHER;
     }
     public CallSession getSession() {
         return session;
@@ -45,8 +54,26 @@ public abstract class Request {
     public abstract boolean isAsync();
     public abstract boolean goAsync();
     
+    /** returns route match of this request, created on first use and reused after. */
+    public RouteMatch getRouteMatch(){
+        if(route==null) route=new RouteMatch();
+        return route;
+    }
+    /** path params copied into a map under their lower case names, writes do not reach the request.
+     * @deprecated builds a map on every call, use getRouteMatch or getPathParam instead.
+     */
+    @Deprecated
     public Map<String,String> getPathParams(){
-        return pathParams;
+        HashMap<String,String> ret=new HashMap<>();
+        RouteMatch m=route;
+        if(m==null || !m.isMatched()) return ret;
+        String[] names=m.getDetector().getParamNames();
+        for(int i=0;i<m.getParamCount() && i<names.length;i++) ret.put(names[i],m.getParam(i));
+        return ret;
+    }
+    /** path param by position (as captured by router) or null. */
+    public String getPathParam(int pos){
+        return route!=null?route.getParam(pos):null;
     }
     public Request setPath(String path){
         pathOverride=path;
@@ -59,6 +86,8 @@ public abstract class Request {
     public abstract String getVerb();
     
     public abstract Object getParam(String pname, Object def);
+    /** query or form param only, a String or String[] if multi valued, null if absent. */
+    public abstract Object getQueryParam(String pname);
     
     public abstract Request setParam(String pname, Object val);
     
@@ -68,6 +97,19 @@ public abstract class Request {
     
     public abstract String getRemoteAddress();
     
+    /** declared body length in bytes, -1 if not known. */
+    public abstract long getContentLength();
+    /** reader over the request body decoded with the request charset. */
+    public abstract Reader getBodyReader() throws IOException;
+    /** raw request body bytes, null if there is none. */
+    public abstract InputStream getBodyStream() throws IOException;
+    /** request body as chunks with back-pressure or as a whole via toBuffer(), at most maxSize bytes (0 or less no limit).
+     * this default reads on the subscriber's thread, containers read without blocking if they can.
+     */
+    public RequestBody getBody(long maxSize) throws IOException{
+        return new RequestBody(getBodyStream(),maxSize);
+    }
+    
     public abstract String getMount();
     
     public abstract String getProtocol();
@@ -0,0 +1,169 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request body as a publisher of chunks with back-pressure, a chunk is read only after the subscriber asked for it.
+ * Over a plain stream reading happens on the thread calling request(n). Containers that read without
+ * blocking (see ServletRequest) override isReady() and start(), they read while data is there and
+ * call signal() once more arrived, so no thread waits on a slow upload.
+ * Going over maxSize fails the subscriber, 0 or less means no limit. A body can be subscribed once.
+ * toBuffer() collects the whole body.
+ */
+public class RequestBody implements Flow.Publisher<ByteBuffer>{
+    public static final int CHUNK_SIZE=8192;
+    protected final InputStream in;
+    protected final long maxSize;
+    final AtomicBoolean subscribed=new AtomicBoolean();
+    final AtomicLong demand=new AtomicLong();
+    final AtomicInteger wip=new AtomicInteger();
+    Flow.Subscriber<? super ByteBuffer> subscriber;
+    volatile boolean cancelled;
+    volatile boolean done;
+    long total;
+    byte[] buf;
+
+    public RequestBody(InputStream in,long maxSize){
+        this.in=in;
+        this.maxSize=maxSize;
+    }
+    public long getMaxSize(){
+        return maxSize;
+    }
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> s){
+        Subscription sub=new Subscription();
+        if(!subscribed.compareAndSet(false,true)){
+            s.onSubscribe(sub);
+            s.onError(new IllegalStateException("request body already read"));
+            return;
+        }
+        subscriber=s;
+        Exception failed=null;
+        try{
+            if(in==null) demand.set(Long.MAX_VALUE); // nothing to read, complete right away
+            else start();   // before onSubscribe so a request(n) made there reads the container's way
+        }catch(IOException|RuntimeException e){
+            failed=e;
+        }
+        s.onSubscribe(sub);
+        if(failed!=null) fail(failed);
+        signal();
+    }
+    final class Subscription implements Flow.Subscription{
+        @Override
+        public void request(long n){
+            if(n<=0){
+                fail(new IllegalArgumentException("non-positive request:"+n));
+                return;
+            }
+            demand.getAndUpdate(d->d+n<0?Long.MAX_VALUE:d+n);
+            signal();
+        }
+        @Override
+        public void cancel(){
+            cancelled=true;
+        }
+    }
+    /** called once subscribed, non-blocking bodies install their listener here. */
+    protected void start() throws IOException{
+    }
+    /** true if read will not block, a false must arrange for signal() once data is there. */
+    protected boolean isReady(){
+        return true;
+    }
+    /** reads as far as demand and data allow, safe to call from any thread at any time. */
+    protected void signal(){
+        if(wip.getAndIncrement()!=0) return; // whoever is in the loop picks it up
+        do{
+            try{
+                while(!done && !cancelled && demand.get()>0){
+                    if(in==null){
+                        finish(null);
+                        break;
+                    }
+                    if(!isReady()) break;
+                    if(buf==null) buf=new byte[CHUNK_SIZE];
+                    int n=in.read(buf);
+                    if(n<0){
+                        finish(null);
+                        break;
+                    }
+                    if(n==0) continue;
+                    total+=n;
+                    if(maxSize>0 && total>maxSize){
+                        finish(tooLarge(maxSize));
+                        break;
+                    }
+                    if(demand.get()!=Long.MAX_VALUE) demand.decrementAndGet();
+                    subscriber.onNext(ByteBuffer.wrap(Arrays.copyOf(buf,n)));
+                }
+            }catch(IOException|RuntimeException e){
+                finish(e);
+            }
+        }while(wip.decrementAndGet()!=0);
+    }
+    /** ends the body with an error, safe to call from any thread. */
+    protected void fail(Throwable t){
+        cancelled=true;
+        synchronized(this){
+            if(done) return;
+            done=true;
+        }
+        subscriber.onError(t);
+    }
+    private void finish(Throwable t){
+        if(t!=null){
+            fail(t);
+            return;
+        }
+        synchronized(this){
+            if(done) return;
+            done=true;
+        }
+        subscriber.onComplete();
+    }
+    public static IllegalArgumentException tooLarge(long max){
+        return new IllegalArgumentException("request body exceeds "+max+" bytes");
+    }
+    /** collects the whole body into one buffer, completes when the last chunk arrived. */
+    public CompletableFuture<ByteBuffer> toBuffer(){
+        CompletableFuture<ByteBuffer> ret=new CompletableFuture<>();
+        subscribe(new Flow.Subscriber<ByteBuffer>(){
+            final ByteArrayOutputStream acc=new ByteArrayOutputStream(CHUNK_SIZE);
+            @Override
+            public void onSubscribe(Flow.Subscription s){
+                s.request(Long.MAX_VALUE); // size limit is the only pacing needed here
+            }
+            @Override
+            public void onNext(ByteBuffer chunk){
+                acc.write(chunk.array(),chunk.arrayOffset()+chunk.position(),chunk.remaining());
+            }
+            @Override
+            public void onError(Throwable t){
+                ret.completeExceptionally(t);
+            }
+            @Override
+            public void onComplete(){
+                ret.complete(ByteBuffer.wrap(acc.toByteArray()));
+            }
+        });
+        return ret;
+    }
+}
@@ -8,16 +8,23 @@ You may not use this file except in compliance with the License.
 package com.reliancy.jabba;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Abstract representation of an HTTP response.
@@ -26,10 +33,13 @@ import java.util.function.Function;
 public abstract class Response {
     // HTTP status codes
     public static final int HTTP_OK=200;
+    public static final int HTTP_PARTIAL_CONTENT=206;
+    public static final int HTTP_RANGE_NOT_SATISFIABLE=416;
     public static final int HTTP_BAD_REQUEST=400;
     public static final int HTTP_NOT_FOUND=404;
     public static final int HTTP_UNAUTHORIZED=401;
     public static final int HTTP_FORBIDDEN=403;
+    public static final int HTTP_PAYLOAD_TOO_LARGE=413;
     public static final int HTTP_TEMPORARY_REDIRECT=307;
     public static final int HTTP_FOUND_REDIRECT=302;
     public static final int HTTP_NOT_MODIFIED=304;
@@ -45,6 +55,14 @@ public abstract class Response {
     protected final ArrayList<HTTP.Header> headers=new ArrayList<>();
     protected final ArrayList<HTTP.Cookie> cookies=new ArrayList<>();
     protected CompletableFuture<Object> promise;
+    protected Thread stageThread;                   // thread running a promise stage right now
+    protected CompletableFuture<?> pending;         // work started by the running stage it must wait for
+
+    /** Pull source of bytes for drain, InputStream::read fits. returns -1 at the end. */
+    @FunctionalInterface
+    public interface ByteSource{
+        int read(byte[] buf) throws IOException;
+    }
 
     protected Response(Request request) {
         this.request = request;
@@ -70,6 +88,18 @@ public abstract class Response {
         this.byte_response=null;
     }
     
+    /** clears per request state so the object can serve another request, the encoder is kept. */
+    protected void reset(){
+        if(encoder!=null) encoder.reset();
+        content_type=null;
+        status=null;
+        state=ResponseState.CREATED;
+        headers.clear();
+        cookies.clear();
+        promise=null;
+        stageThread=null;
+        pending=null;
+    }
     public ResponseState getState() {
         return state;
     }
@@ -146,6 +176,31 @@ public abstract class Response {
         return cookies;
     }
     
+    /**
+     * Sends a slice of a file as the body, the caller sets status, type and length.
+     * This default copies it through the encoder stream blocking the caller,
+     * containers override to hand the file to the server without copying.
+     * @param file file on disk
+     * @param offset first byte to send
+     * @param length number of bytes to send
+     * @throws IOException if reading or writing fails
+     */
+    public void sendFile(Path file,long offset,long length) throws IOException{
+        OutputStream os=getEncoder().getOutputStream();
+        try(FileChannel ch=FileChannel.open(file,StandardOpenOption.READ)){
+            transitionTo(ResponseState.WRITING);
+            WritableByteChannel out=Channels.newChannel(os);
+            long pos=offset,end=offset+length;
+            while(pos<end){
+                long n=ch.transferTo(pos,end-pos,out);
+                if(n<=0) break;
+                pos+=n;
+            }
+            if(pos<end) throw new EOFException("file shrank below the declared length:"+file);
+        }finally{
+            if(state == ResponseState.WRITING) transitionTo(ResponseState.WRITTEN);
+        }
+    }
     public abstract boolean isCommitted();
     
     public abstract void commit();
@@ -161,9 +216,10 @@ public abstract class Response {
     /**
      * Initiate an async promise chain using supplyAsync.
      * Gets executor from request's CallSession.
-     * Automatically attaches/detaches CallSession for the executing thread.
+     * Attaches CallSession to the executing thread for the stage, no counting or locking per stage.
      * Can be called multiple times - will chain after existing promise.
      * Automatically flattens if supplier returns a CompletableFuture.
+     * The first call retains the CallSession for the chain, promiseLast releases it.
      * @param supplier lambda that accepts one value and returns one value (or CompletableFuture)
      * @return this Response for chaining
      */
@@ -180,13 +236,15 @@ public abstract class Response {
         
         Function<Object, CompletableFuture<Object>> newTask = (prevValue) -> {
             CompletableFuture<Object> innerFuture = CompletableFuture.supplyAsync(() -> {
-                session.beginAgain();
+                CallSession prev = session != null ? session.attach() : null;
+                stageThread = Thread.currentThread();
                 try {
-                    return supplier.apply(prevValue);
+                    return joinPending(supplier.apply(prevValue));
                 } catch (Exception e) {
                     throw new RuntimeException(e);
                 } finally {
-                    session.end();
+                    stageThread = null;
+                    if(session != null) session.detach(prev);
                 }
             }, executor);
             
@@ -204,6 +262,7 @@ public abstract class Response {
         if(promise != null) {
             promise = promise.thenCompose(newTask);
         } else {
+            if(session != null) session.retain(); // chain holds session until promiseLast
             promise = newTask.apply(null);
         }
         return this;
@@ -220,18 +279,73 @@ public abstract class Response {
             throw new IllegalStateException("Promise chain not initiated. Call promiseFirst() first.");
         }
         final CallSession session = request.getSession();
-        promise = promise.thenApply(value -> {
-            session.beginAgain();
+        promise = promise.thenCompose(value -> {
+            CallSession prev = session != null ? session.attach() : null;
+            stageThread = Thread.currentThread();
             try {
-                return step.apply(value);
+                Object ret = joinPending(step.apply(value));
+                if(ret instanceof CompletableFuture){
+                    @SuppressWarnings("unchecked")
+                    CompletableFuture<Object> f = (CompletableFuture<Object>)ret;
+                    return f;
+                }
+                return CompletableFuture.completedFuture(ret);
             } catch (Exception e) {
                 throw (e instanceof RuntimeException) ? (RuntimeException)e : new RuntimeException(e);
             } finally {
-                session.end();
+                stageThread = null;
+                if(session != null) session.detach(prev);
             }
         });
         return this;
     }
+    /**
+     * Adds a step that completes when the future from start completes, no thread is held in between.
+     * Called from within a running stage the future is started right away and that stage waits for it,
+     * otherwise it is started once the chain gets there (starting a chain if there is none).
+     * Used for non-blocking writes, see ResponseEncoder.writeStreamAsync.
+     * @param start starts the work and returns its completion
+     * @return this Response for chaining
+     */
+    public Response promiseAwait(Supplier<CompletableFuture<?>> start) {
+        if(stageThread == Thread.currentThread()){
+            CompletableFuture<?> f = start.get();
+            pending = pending == null ? f : pending.thenCompose(v -> f);
+            return this;
+        }
+        return promiseFirst(v -> start.get());
+    }
+    /** when the stage started work via promiseAwait the result is delayed until that work is done. */
+    private Object joinPending(Object ret){
+        CompletableFuture<?> p = pending;
+        if(p == null) return ret;
+        pending = null;
+        if(ret instanceof CompletableFuture){
+            CompletableFuture<?> f = (CompletableFuture<?>)ret;
+            return p.thenCompose(v -> f);
+        }
+        return p.thenApply(v -> ret);
+    }
+    /**
+     * Copies the source to the output and completes when it is all written, the caller closes the source.
+     * This default blocks the calling thread, container responses override it to write only
+     * as fast as the client takes it without parking a thread.
+     * @param src where bytes come from
+     * @return future done when the source is drained
+     */
+    public CompletableFuture<Void> drain(ByteSource src) {
+        try{
+            OutputStream os = getEncoder().getOutputStream();
+            byte[] buf = new byte[2*4096];
+            int n;
+            while((n = src.read(buf)) != -1){
+                os.write(buf, 0, n);
+            }
+            return CompletableFuture.completedFuture(null);
+        }catch(IOException e){
+            return CompletableFuture.failedFuture(e);
+        }
+    }
     
     /**
      * Final step in the promise chain - finalizes response and handles errors.
@@ -244,16 +358,19 @@ public abstract class Response {
             throw new IllegalStateException("Promise chain not initiated. Call promiseFirst() first.");
         }
         final CallSession session = request.getSession();
-        promise = promise.whenComplete((result, error) -> {
-            session.beginAgain();
+        CompletableFuture<Object> last = promise.whenComplete((result, error) -> {
+            CallSession prev = session != null ? session.attach() : null;
             try {
                 callback.accept(result, error);
             } catch (Exception e) {
                 e.printStackTrace();
             } finally {
-                session.end();
+                if(session != null) session.detach(prev);
             }
         }).thenApply(v -> null);
+        promise = last;
+        // hold taken by promiseFirst, dropping it may recycle this response so promise is set first
+        if(session != null) last.whenComplete((result, error) -> session.release());
         return this;
     }
     
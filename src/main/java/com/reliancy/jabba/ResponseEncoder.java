@@ -7,6 +7,7 @@ You may not use this file except in compliance with the License.
 */
 package com.reliancy.jabba;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
@@ -16,7 +17,12 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.Collection;
@@ -61,6 +67,13 @@ public class ResponseEncoder implements Appendable,Closeable{
         //locale=loc;
         charSet=chset;
     }
+    /** forgets the writer and stream of the last request, used when the response is recycled. */
+    protected void reset(){
+        writer=null;
+        out=null;
+        charSet=StandardCharsets.UTF_8;
+        errorFmt=null;
+    }
     public ResponseEncoder setCharSet(Charset set){
         charSet=set;
         return this;
@@ -89,10 +102,24 @@ public class ResponseEncoder implements Appendable,Closeable{
         if(out!=null) out.flush();
     }
     public ResponseEncoder writeBytes(byte[] buf,int offset,int len) throws IOException{
-        
+        // Get output stream first (this will commit if still in CONFIGURING)
+        OutputStream os=getOutputStream();
+        try{
+            response.transitionTo(ResponseState.WRITING);
+            os.write(buf,offset, len);
+        }finally{
+            if(response.getState() == ResponseState.WRITING) {
+                response.transitionTo(ResponseState.WRITTEN);
+            }
+        }
+        return this;
+    }
+    public ResponseEncoder writeChars(char[] buf,int offset,int len) throws IOException{
+        // Get writer first (this will commit if still in CONFIGURING)
+        Writer wr=getWriter();
         try{
             response.transitionTo(ResponseState.WRITING);
-            getOutputStream().write(buf,offset, len);
+            wr.write(buf,offset,len);
         }finally{
             if(response.getState() == ResponseState.WRITING) {
                 response.transitionTo(ResponseState.WRITTEN);
@@ -100,6 +127,10 @@ public class ResponseEncoder implements Appendable,Closeable{
         }
         return this;
     }
+    /** writer for large text such as rendered templates, sent out a chunk at a time. */
+    public Writer openChunkWriter(){
+        return new ChunkWriter(this);
+    }
     public ResponseEncoder writeString(CharSequence str) throws IOException{
         // Get writer first (this will commit if still in CONFIGURING)
         Writer wr=getWriter();
@@ -181,6 +212,85 @@ public class ResponseEncoder implements Appendable,Closeable{
         }
         return this;
     }
+    /** Writes the stream without parking a thread while a slow client takes it.
+     * The request goes async (if not already) and the bytes go out via Response.drain as a promise step,
+     * so the response completes only once all is written. If the request cannot go async or a writer
+     * is already in use this falls back to writeStream. The stream is closed at the end in both cases.
+     * Later output should go the same way, blocking writes may find the output not ready.
+     */
+    public ResponseEncoder writeStreamAsync(InputStream is) throws IOException{
+        if(!canDrain()){
+            try(is){
+                return writeStream(is);
+            }
+        }
+        return drainAsync(is::read,is);
+    }
+    public ResponseEncoder writeBytesAsync(byte[] buf,int offset,int len) throws IOException{
+        return writeStreamAsync(new ByteArrayInputStream(buf,offset,len));
+    }
+    /** as writeStreamAsync, chars are encoded with our charset a chunk at a time. */
+    public ResponseEncoder writeReaderAsync(Reader rd) throws IOException{
+        if(!canDrain()){
+            try(rd){
+                return writeReader(rd);
+            }
+        }
+        return drainAsync(new EncodingSource(rd,charSet),rd);
+    }
+    /** true if the request is or can go async and we are not bound to a container writer. */
+    protected boolean canDrain(){
+        Request req=response.getRequest();
+        if(req==null || (writer!=null && out==null)) return false;
+        return req.isAsync() || req.goAsync();
+    }
+    protected ResponseEncoder drainAsync(Response.ByteSource src,Closeable res) throws IOException{
+        getOutputStream();              // commit headers here
+        if(writer!=null) writer.flush(); // text written so far goes first
+        response.promiseAwait(()->{
+            response.transitionTo(ResponseState.WRITING);
+            return response.drain(src).whenComplete((v,err)->{
+                try{
+                    res.close();
+                }catch(IOException e){
+                    log().warn("closing drained source:",e);
+                }
+                if(response.getState() == ResponseState.WRITING) {
+                    response.transitionTo(ResponseState.WRITTEN);
+                }
+            });
+        });
+        return this;
+    }
+    /** byte source over a reader. */
+    static final class EncodingSource implements Response.ByteSource{
+        final Reader rd;
+        final CharsetEncoder enc;
+        final CharBuffer chars=CharBuffer.allocate(4096);
+        boolean eof,encoded,done;
+        EncodingSource(Reader rd,Charset cs){
+            this.rd=rd;
+            enc=cs.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        @Override
+        public int read(byte[] buf) throws IOException{
+            ByteBuffer bytes=ByteBuffer.wrap(buf);
+            while(bytes.position()==0 && !done){
+                if(!encoded){
+                    if(!eof && chars.hasRemaining() && rd.read(chars)<0) eof=true;
+                    chars.flip();
+                    CoderResult cr=enc.encode(chars,bytes,eof);
+                    chars.compact();
+                    if(cr.isError()) cr.throwException();
+                    if(eof && cr.isUnderflow()) encoded=true;
+                }else if(enc.flush(bytes).isUnderflow()){
+                    done=true;
+                }
+            }
+            int n=bytes.position();
+            return n==0 && done?-1:n;
+        }
+    }
     public ResponseEncoder setErrorFormat(String fmt){
         errorFmt=fmt;
         return this;
@@ -294,6 +404,8 @@ public class ResponseEncoder implements Appendable,Closeable{
                 writeBytes(bret,0,bret.length);
             }else if(ret instanceof Throwable){
                 writeError((Throwable)ret);
+            }else if(ret instanceof Rendering){
+                ((Rendering)ret).end(response);
             }else{
                 String str = ret.toString();
                 log().debug("ResponseEncoder.writeObject(): writing string, length={}", str.length());
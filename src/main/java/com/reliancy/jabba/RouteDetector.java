@@ -22,22 +22,29 @@ public class RouteDetector {
     String path;
     String pattern;
     final ArrayList<String> params=new ArrayList<String>();
+    String[] paramNames;        // lower case param names without type suffix
     Pattern regex;
     Object payload;
+    boolean wildcard;
+
+    static final Pattern PARAM=Pattern.compile("\\{([^{}]+)\\}");
 
     public RouteDetector(String verb,String path){
-        this.verb=verb;
+        this.verb=verb!=null?verb.toUpperCase():"GET|POST|DELETE";
         this.path=path;
-        if(this.verb==null) this.verb="GET|POST|DELETE";
-        verb=verb.toUpperCase();
-        pattern=toPattern(verb, path);
+        pattern=toPattern(this.verb, path);
         regex=Pattern.compile(pattern);
-        Pattern p=Pattern.compile("\\{(.+)\\}");
-        Matcher m=p.matcher(path);
+        Matcher m=PARAM.matcher(path);
         while(m.find()){
             String g=m.group();
             params.add(Handy.unwrap(g,"{","}"));
         }
+        paramNames=new String[params.size()];
+        for(int i=0;i<paramNames.length;i++){
+            String nm=params.get(i);
+            int colon=nm.indexOf(':');
+            paramNames[i]=(colon>0?nm.substring(0,colon):nm).toLowerCase();
+        }
         //if(params.isEmpty()==false) routeParams.put(routePat,params);
     }
     public String toString(){
@@ -53,7 +60,11 @@ public class RouteDetector {
         return path;
     }
     public static String toPattern(String verb,String path){
-        String pathPattern=path.replaceAll("\\{(.+)\\}","(.+)");
+        // params become named groups so any groups in the path itself do not shift them
+        Matcher m=PARAM.matcher(path);
+        StringBuilder pathPattern=new StringBuilder();
+        for(int i=0;m.find();i++) m.appendReplacement(pathPattern,"(?<p"+i+">.+)");
+        m.appendTail(pathPattern);
         String ret=Handy.wrap(verb,"(",")")+" "+pathPattern;
         if(!ret.endsWith("/") && !ret.endsWith("$")) ret+="$";
         return ret;
@@ -64,6 +75,10 @@ public class RouteDetector {
     public ArrayList<String> getParams(){
         return params;
     }
+    /** param names in lower case and without any :type suffix. */
+    public String[] getParamNames(){
+        return paramNames;
+    }
     public boolean matches(String pat){
         return matches(pat,null);
     }
@@ -74,7 +89,7 @@ public class RouteDetector {
             if(p!=null){
                 ArrayList<String> pms=getParams();
                 for(int i=0;i<pms.size();i++){
-                    String val=m.group(1+i);
+                    String val=m.group("p"+i);
                     String byName=pms.get(i).toLowerCase();
                     p.put(byName,val);
                     p.put("_arg"+i,val);
@@ -84,6 +99,20 @@ public class RouteDetector {
         }
         return false;
     }
+    /** matches verb and path and records param offsets relative to path into m. */
+    public boolean matches(String verb,String path,RouteMatch m){
+        String input=verb+" "+path;
+        Matcher mm=regex.matcher(input);
+        if(!mm.find()) return false;
+        int shift=verb.length()+1;
+        int n=params.size();
+        m.begin(path,n);
+        for(int i=0;i<n;i++){
+            m.setBounds(i,mm.start("p"+i)-shift,mm.end("p"+i)-shift);
+        }
+        m.finish(this);
+        return true;
+    }
     @Override
     public int hashCode(){
         return getPattern().hashCode();
@@ -109,4 +138,11 @@ public class RouteDetector {
     public Object getPayload(){
         return payload;
     }
+    /** set by RouteIndex when route was indexed as trailing wildcard. */
+    void setWildcard(boolean f){
+        wildcard=f;
+    }
+    public boolean isWildcard(){
+        return wildcard;
+    }
 }
@@ -0,0 +1,217 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/** Compiled lookup structure over a list of route detectors.
+ * Routes are split into a segment trie per verb so a request is resolved by walking the path once.
+ * Supported route shapes are static segments, whole segment {param} captures and a trailing
+ * wildcard given either as /* or .* suffix or as a path ending in /.
+ * Anything else (regex classes, alternations, partial segment params) goes to a fallback list
+ * which is checked with the detector's own regex.
+ * Priority at each node is static child, then param child, then wildcard, and any exact route
+ * beats a wildcard: the trie is walked for exact routes first and walked again for a wildcard
+ * only after fallback routes had their chance.
+ */
+public class RouteIndex {
+    /** One level of the trie. Static children live in an open addressing table
+     * so we can probe with a region of the path without cutting substrings.
+     */
+    static final class Node {
+        String[] keys;
+        Node[] kids;
+        int count;
+        Node param;
+        RouteDetector terminal;
+        RouteDetector wildcard;
+        boolean wildcardStrict;     // wildcard needs at least one more char (path ended in /)
+
+        Node child(String key){
+            if(keys==null){
+                keys=new String[4];
+                kids=new Node[4];
+            }
+            Node ret=get(key,0,key.length());
+            if(ret!=null) return ret;
+            if((count+1)*2>keys.length) rehash(keys.length*2);
+            ret=new Node();
+            insert(key,ret);
+            count++;
+            return ret;
+        }
+        Node get(CharSequence path,int start,int end){
+            if(keys==null) return null;
+            int mask=keys.length-1;
+            int len=end-start;
+            for(int i=hash(path,start,end)&mask;keys[i]!=null;i=(i+1)&mask){
+                String k=keys[i];
+                if(k.length()==len && regionEquals(k,path,start)) return kids[i];
+            }
+            return null;
+        }
+        private void insert(String key,Node n){
+            int mask=keys.length-1;
+            int i=key.hashCode()&mask;
+            while(keys[i]!=null) i=(i+1)&mask;
+            keys[i]=key;
+            kids[i]=n;
+        }
+        private void rehash(int size){
+            String[] oldKeys=keys;
+            Node[] oldKids=kids;
+            keys=new String[size];
+            kids=new Node[size];
+            for(int i=0;i<oldKeys.length;i++){
+                if(oldKeys[i]!=null) insert(oldKeys[i],oldKids[i]);
+            }
+        }
+    }
+    /** same as String.hashCode but over a region, so keys inserted as strings probe the same slot. */
+    static int hash(CharSequence s,int start,int end){
+        int h=0;
+        for(int i=start;i<end;i++) h=31*h+s.charAt(i);
+        return h;
+    }
+    static boolean regionEquals(String key,CharSequence s,int start){
+        for(int i=0;i<key.length();i++){
+            if(key.charAt(i)!=s.charAt(start+i)) return false;
+        }
+        return true;
+    }
+
+    final HashMap<String,Node> roots=new HashMap<>();
+    final ArrayList<RouteDetector> fallback=new ArrayList<>();
+    int maxParams;
+
+    /** builds index from detectors. order of the list is kept for fallback routes. */
+    public RouteIndex(List<RouteDetector> detectors){
+        for(RouteDetector det:detectors){
+            if(!insert(det)) fallback.add(det);
+        }
+    }
+    /** number of routes which could not be placed in the trie. */
+    public int getFallbackCount(){
+        return fallback.size();
+    }
+    /**
+     * Resolves verb and path into a route match.
+     * Captured path params are recorded as offsets into path.
+     * @param verb request verb, upper case
+     * @param path request path starting with /
+     * @param m match to fill, it is reset first
+     * @return true if a route matched
+     */
+    public boolean lookup(String verb,String path,RouteMatch m){
+        m.begin(path,maxParams);
+        Node root=roots.get(verb);
+        RouteDetector ret=null;
+        boolean rooted=root!=null && path.length()>0 && path.charAt(0)=='/';
+        if(rooted) ret=walk(root,path,1,m,0,true);
+        if(ret!=null){
+            m.finish(ret);
+            return true;
+        }
+        // exact trie hit missing - regex routes get to go before any wildcard
+        for(int i=0;i<fallback.size();i++){
+            if(fallback.get(i).matches(verb,path,m)) return true;
+        }
+        if(rooted) ret=walk(root,path,1,m.begin(path,maxParams),0,false);
+        m.finish(ret);
+        return ret!=null;
+    }
+    /** walks the trie. pos is start of a segment, pos>len signals the path was consumed.
+     * exact only takes terminal routes, otherwise a node's wildcard is taken once its static and
+     * param children found nothing.
+     */
+    RouteDetector walk(Node node,String path,int pos,RouteMatch m,int depth,boolean exact){
+        int len=path.length();
+        if(pos>len){
+            if(node.terminal!=null) return node.terminal;
+            return exact || node.wildcardStrict?null:node.wildcard;
+        }
+        int end=path.indexOf('/',pos);
+        if(end<0) end=len;
+        Node next=node.get(path,pos,end);
+        if(next!=null){
+            RouteDetector ret=walk(next,path,end+1,m,depth,exact);
+            if(ret!=null) return ret;
+        }
+        if(node.param!=null && end>pos && depth<maxParams){
+            m.setBounds(depth,pos,end);
+            RouteDetector ret=walk(node.param,path,end+1,m,depth+1,exact);
+            if(ret!=null) return ret;
+        }
+        return exact?null:node.wildcard;
+    }
+    /** places detector in trie, returns false if it needs the regex fallback. */
+    private boolean insert(RouteDetector det){
+        String[] verbs=det.getVerb().split("\\|");
+        for(String v:verbs){
+            if(v.isEmpty() || !isPlain(v)) return false;
+        }
+        String path=det.getPath();
+        if(!path.startsWith("/")) return false;
+        boolean wildcard=false;
+        boolean strict=false;
+        if(path.endsWith("/*") || path.endsWith(".*")){
+            wildcard=true;
+            path=path.substring(0,path.length()-2);
+        }else if(path.endsWith("/")){
+            wildcard=strict=true;
+            path=path.substring(0,path.length()-1);
+        }
+        if(wildcard && path.endsWith("/")) path=path.substring(0,path.length()-1);
+        String[] segs=path.isEmpty()?new String[0]:path.substring(1).split("/",-1);
+        int params=0;
+        for(String seg:segs){
+            if(isParam(seg)){
+                params++;
+            }else if(!isPlain(seg)){
+                return false;
+            }
+        }
+        if(params!=det.getParams().size()) return false;
+        for(String v:verbs){
+            Node node=roots.computeIfAbsent(v,k->new Node());
+            for(String seg:segs){
+                if(isParam(seg)){
+                    if(node.param==null) node.param=new Node();
+                    node=node.param;
+                }else{
+                    node=node.child(seg);
+                }
+            }
+            if(wildcard){
+                if(node.wildcard==null){
+                    node.wildcard=det;
+                    node.wildcardStrict=strict;
+                }
+            }else if(node.terminal==null){
+                node.terminal=det;
+            }
+        }
+        det.setWildcard(wildcard);
+        maxParams=Math.max(maxParams,params);
+        return true;
+    }
+    static boolean isParam(String seg){
+        int len=seg.length();
+        if(len<3 || seg.charAt(0)!='{' || seg.charAt(len-1)!='}') return false;
+        return seg.indexOf('{',1)<0 && seg.indexOf('}')==len-1;
+    }
+    /** true if segment has no regex meaning. */
+    static boolean isPlain(String seg){
+        for(int i=0;i<seg.length();i++){
+            if("\\^$.|?*+()[]{}".indexOf(seg.charAt(i))>=0) return false;
+        }
+        return true;
+    }
+}
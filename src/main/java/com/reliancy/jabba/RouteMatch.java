@@ -0,0 +1,121 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba;
+
+import java.util.Arrays;
+
+/** Result of routing a request.
+ * Holds the matched detector and the begin/end offsets of each path param within the path.
+ * Param strings are cut only when asked for, so a match costs no allocation beyond this object,
+ * which is reused (owned by the request or by the thread in Router.match).
+ * Params are found by name (case insensitive, type suffix as in {id:int} ignored) or by
+ * position using the legacy _argN names.
+ */
+public final class RouteMatch {
+    RouteDetector detector;
+    String path;
+    int[] bounds=new int[8];
+    int count;
+    String[] overrides;
+
+    public RouteMatch(){
+    }
+    /** clears the match so the object can be reused. */
+    public RouteMatch reset(){
+        detector=null;
+        path=null;
+        count=0;
+        if(overrides!=null) Arrays.fill(overrides,null);
+        return this;
+    }
+    /** prepares for a new match over path with room for n params. */
+    RouteMatch begin(String path,int n){
+        reset();
+        this.path=path;
+        if(bounds.length<2*n) bounds=new int[2*n];
+        return this;
+    }
+    void setBounds(int i,int begin,int end){
+        bounds[2*i]=begin;
+        bounds[2*i+1]=end;
+    }
+    /** copies matched param offsets, used to cache a match. */
+    int[] copyBounds(){
+        return Arrays.copyOf(bounds,2*count);
+    }
+    RouteMatch finish(RouteDetector det){
+        detector=det;
+        count=det!=null?det.getParams().size():0;
+        return this;
+    }
+    public boolean isMatched(){
+        return detector!=null;
+    }
+    public RouteDetector getDetector(){
+        return detector;
+    }
+    public EndPoint getEndPoint(){
+        return detector!=null?(EndPoint)detector.getPayload():null;
+    }
+    public String getPath(){
+        return path;
+    }
+    public int getParamCount(){
+        return count;
+    }
+    /** returns param at position or null if out of range. */
+    public String getParam(int i){
+        if(i<0 || i>=count) return null;
+        if(overrides!=null && overrides[i]!=null) return overrides[i];
+        return path.substring(bounds[2*i],bounds[2*i+1]);
+    }
+    public String getParam(String name){
+        return getParam(indexOf(name));
+    }
+    /** position of named param, -1 if not present. accepts _argN. */
+    public int indexOf(String name){
+        if(count==0 || name==null) return -1;
+        if(name.startsWith("_arg")){
+            int pos=0;
+            int len=name.length();
+            if(len==4) return -1;
+            for(int i=4;i<len;i++){
+                char c=name.charAt(i);
+                if(c<'0' || c>'9') return indexOfName(name);
+                pos=pos*10+(c-'0');
+            }
+            return pos<count?pos:-1;
+        }
+        return indexOfName(name);
+    }
+    private int indexOfName(String name){
+        String[] names=detector.getParamNames();
+        for(int i=0;i<count;i++){
+            if(names[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+    /** overrides value of an existing param, returns false if no such param. */
+    public boolean setParam(String name,String val){
+        int i=indexOf(name);
+        if(i<0) return false;
+        if(overrides==null || overrides.length<count) overrides=new String[Math.max(count,4)];
+        overrides[i]=val;
+        return true;
+    }
+    @Override
+    public String toString(){
+        StringBuilder buf=new StringBuilder();
+        buf.append(detector!=null?detector.getPattern():"unmatched");
+        for(int i=0;i<count;i++){
+            buf.append(i==0?" {":",").append(detector.getParamNames()[i]).append("=").append(getParam(i));
+        }
+        if(count>0) buf.append("}");
+        return buf.toString();
+    }
+}
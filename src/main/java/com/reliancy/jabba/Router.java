@@ -9,41 +9,111 @@ package com.reliancy.jabba;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 
 import com.reliancy.jabba.decor.Async;
 import com.reliancy.jabba.decor.Routed;
 import com.reliancy.jabba.decor.WebSocket;
+import com.reliancy.util.ClockCache;
 
 /** Router is a special Processor which redirects requests to endpoints.
  * Handles HTTP endpoints.
+ * Routes are compiled into a RouteIndex (segment trie per verb) so lookup does not run regex
+ * except for the few routes that really need it.
+ * The compiled state lives in an immutable Table which is swapped in one volatile write.
+ * Readers never lock or compile, writers serialize on the router and publish a new table,
+ * so routes can be added or retracted while requests are being served.
  */
 public class Router extends Processor{
-    HashMap<String,EndPoint> routes=new HashMap<>();      // HTTP route pattern to endpoint
-    ArrayList<RouteDetector> detectors=new ArrayList<>(); // route patterns ordered
-    int[] indexes;              // indexes for each route within regex
-    Pattern regex;
+    /** immutable snapshot of routes with its index and its own result cache. */
+    static final class Table{
+        final List<RouteDetector> detectors;    // route patterns ordered, longest first
+        final Map<String,EndPoint> routes;      // HTTP route pattern to endpoint
+        final RouteIndex index;
+        final ClockCache<RouteKey,CachedRoute> cache;
+        Table(List<RouteDetector> dets,int cacheSize){
+            ArrayList<RouteDetector> sorted=new ArrayList<>(dets);
+            Collections.sort(sorted,Comparator.comparing((det)->{return -det.getPath().length();}));
+            HashMap<String,EndPoint> rts=new HashMap<>();
+            for(RouteDetector det:sorted) rts.put(det.getPattern(),(EndPoint)det.getPayload());
+            detectors=Collections.unmodifiableList(sorted);
+            routes=Collections.unmodifiableMap(rts);
+            index=new RouteIndex(sorted);
+            cache=new ClockCache<>(cacheSize);
+        }
+    }
+    volatile Table table=new Table(Collections.emptyList(),Config.ROUTE_CACHE_SIZE.getInitial());
+    int cacheSize=Config.ROUTE_CACHE_SIZE.getInitial();    // guarded by the router lock
+
+    /** (verb,path) cache key. lookups reuse a per-thread instance so a hit allocates nothing. */
+    static final class RouteKey{
+        String verb;
+        String path;
+        int hash;
+        RouteKey set(String verb,String path){
+            this.verb=verb;
+            this.path=path;
+            hash=31*verb.hashCode()+path.hashCode();
+            return this;
+        }
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof RouteKey)) return false;
+            RouteKey k=(RouteKey)o;
+            return hash==k.hash && path.equals(k.path) && verb.equals(k.verb);
+        }
+    }
+    static final ThreadLocal<RouteKey> threadKey=ThreadLocal.withInitial(RouteKey::new);
+    /** resolved route for one verb and path. */
+    static final class CachedRoute{
+        final RouteDetector detector;
+        final int[] bounds;
+        CachedRoute(RouteMatch m){
+            this.detector=m.getDetector();
+            this.bounds=m.copyBounds();
+        }
+        void apply(String path,RouteMatch m){
+            int n=bounds.length/2;
+            m.begin(path,n);
+            for(int i=0;i<n;i++) m.setBounds(i,bounds[2*i],bounds[2*i+1]);
+            m.finish(detector);
+        }
+    }
 
     public Router() {
         super("Router");
     }
     @Override
+    public void begin(Config conf) throws Exception{
+        super.begin(conf);
+        if(conf!=null){
+            int size=Config.ROUTE_CACHE_SIZE.get(conf);
+            synchronized(this){    // publish reads it under the same lock
+                cacheSize=size;
+                table.cache.setCapacity(size);
+            }
+        }
+    }
+    @Override
     public void serve(Request req, Response resp) throws IOException {
         //System.out.println(req.http_request);
         String verb=req.getVerb();
         String path=req.getPath();
         log().info("serving:{}",path);
-        Matcher m=match(verb,path);
-        //Matcher m=rep.match("GET","/helloP");
-        if(m==null){
+        RouteMatch m=req.getRouteMatch();
+        if(!match(verb,path,m)){
             log().error("could not resolve path:{}",path);
             resp.setContentType("text/plain;charset=utf-8");
             resp.setStatus(Response.HTTP_NOT_FOUND);
@@ -51,8 +121,8 @@ public class Router extends Processor{
             //return isAsync()?CompletableFuture.completedFuture(null):null;
             return;
         }
-        String rt=evalMatcher(m,req.getPathParams());
-        EndPoint ep=getRoute(rt);
+        String rt=m.getDetector().getPattern();
+        EndPoint ep=m.getEndPoint();
         if(ep==null){
             log().error("no endpoint for:{}",rt);
             resp.setContentType("text/plain;charset=utf-8");
@@ -70,7 +140,7 @@ public class Router extends Processor{
      * @return endpoint matching path
      */
     public EndPoint getRoute(String r){
-        return routes.get(r);
+        return table.routes.get(r);
     }
     /** Lookup of endpoint by method name or part of it.
      * matches if endpoint id endswith method_name.
@@ -80,82 +150,94 @@ public class Router extends Processor{
      */
     public EndPoint getRouteByMethod(String method_name){
         method_name=method_name.toLowerCase();
-        for(EndPoint ep:routes.values()){
+        for(EndPoint ep:table.routes.values()){
             String nm=ep.getId().toLowerCase();
             if(nm.endsWith(method_name)) return ep;
         }
         return null;
     }
+    /** adds or replaces (same verb and path) a route and publishes a new table. */
     public void addRoute(String verb,String path, EndPoint mm) {
-        RouteDetector det=new RouteDetector(verb,path);
-        detectors.add(det);
-        routes.put(det.getPattern(),mm);
+        ArrayList<RouteDetector> added=new ArrayList<>(1);
+        added.add(new RouteDetector(verb,path).setPayload(mm));
+        addRoutes(added);
     }
-
-    public void compile() {
-        // sort with longest first
-        Collections.sort(detectors,Comparator.comparing((det)->{return -det.getPath().length();}));
-        String fullPat=detectors
-            .stream()
-            .map(RouteDetector::toString)
-            .collect(Collectors.joining(")|("));
-        fullPat = "("+fullPat+")";
-        //System.out.println("FUll:"+fullPat);
-        regex=Pattern.compile(fullPat);
-        // also recompute indexes
-        indexes=new int[detectors.size()];
-        int index=1;
-        for (int i = 0; i < indexes.length; i++) {
-            indexes[i]=index;
-            RouteDetector det=detectors.get(i);
-            index+=2; // this includes the verb group
-            if(det.hasParams()){ // this includes any param groups
-                index+=det.getParams().size();
-            }
+    /** adds or replaces routes in one step, detector payloads are the endpoints. */
+    public synchronized void addRoutes(Collection<RouteDetector> added){
+        if(added.isEmpty()) return;
+        LinkedHashMap<String,RouteDetector> next=new LinkedHashMap<>();
+        for(RouteDetector det:table.detectors) next.put(det.getPattern(),det);
+        for(RouteDetector det:added) next.put(det.getPattern(),det);
+        publish(new ArrayList<>(next.values()));
+    }
+    /** removes routes whose endpoint matches and publishes a new table.
+     * @return number of routes removed
+     */
+    public synchronized int removeRoutes(Predicate<EndPoint> which){
+        ArrayList<RouteDetector> next=new ArrayList<>();
+        for(RouteDetector det:table.detectors){
+            if(!which.test((EndPoint)det.getPayload())) next.add(det);
         }
-        //Arrays.stream(indexes).forEach(e->System.out.println(e+" "));
+        int removed=table.detectors.size()-next.size();
+        if(removed>0) publish(next);
+        return removed;
+    }
+    /** removes routes served by owner, either the endpoint itself or the target of method endpoints. */
+    public int removeRoutes(Object owner){
+        return removeRoutes(ep->ep==owner || (ep instanceof MethodEndPoint && ((MethodEndPoint)ep).target==owner));
     }
-    public Matcher match(String verb,String path){
-        if(regex==null) compile();
-        String input=verb+" "+path;
-        Matcher m=regex.matcher(input);
-        if(!m.find()) return null;
-        return m;
+    /** rebuilds route index.
+     * routes are compiled when added so this is only needed to pick up a new cache size.
+     */
+    public synchronized void compile() {
+        publish(table.detectors);
+    }
+    /** compiles detectors into a table and swaps it in. caller holds the router lock. */
+    protected void publish(List<RouteDetector> dets){
+        Table next=new Table(dets,cacheSize);
+        table=next;
+        if(next.index.getFallbackCount()>0) log().debug("routes needing regex:{}",next.index.getFallbackCount());
+    }
+    public RouteIndex getIndex(){
+        return table.index;
+    }
+    /** exact (verb,path) cache in front of the index, exposes hit and miss counts.
+     * only literal routes are cached, paths resolved through params, wildcards or regex
+     * are unbounded in number and would just churn it.
+     * each published table brings a fresh cache so counts restart after a route change.
+     */
+    public ClockCache<?,?> getCache(){
+        return table.cache;
     }
     /**
-     * Find the route and return also url params.
-     * url params are saved in two ways by name and by pos.
-     * @param m matcher to check
-     * @param p parameters to reference
-     * @return
+     * Find the route and record url params as offsets into path.
+     * @param verb request verb
+     * @param path request path
+     * @param m match to fill and reuse
+     * @return true if some route matched
      */
-    public String evalMatcher(Matcher m,Map<String,String> p){
-        String gstr=null;
-        int gindex=1;
-        while(gindex<m.groupCount() && gstr==null){
-            gstr=m.group(gindex);
-            if(gstr==null) gindex++;
+    public boolean match(String verb,String path,RouteMatch m){
+        final Table t=table;    // one snapshot for the whole lookup
+        CachedRoute hit=t.cache.get(threadKey.get().set(verb,path));
+        if(hit!=null){
+            hit.apply(path,m);
+            return true;
         }
-        if(gstr==null) return null; // no group found
-        // now find route given group
-        int rindex=-1;
-        for (int i = 0; i < indexes.length && rindex<0; i++) {
-           if(gindex==indexes[i]) rindex=i;
-        }
-        if(rindex<0) return null; // we can't match route to group
-        RouteDetector det=detectors.get(rindex);
-        //String ret=patterns.get(rindex);
-        if(p!=null && det.hasParams()){
-            ArrayList<String> pms=det.getParams();
-            for(int i=0;i<pms.size();i++){
-                String val=m.group(gindex+2+i);
-                String byName=pms.get(i).toLowerCase();
-                p.put(byName,val);
-                p.put("_arg"+i,val);
-            }
-        }
-        return det.getPattern();
+        if(!t.index.lookup(verb,path,m)) return false;
+        if(path.equals(m.getDetector().getPath())) t.cache.put(new RouteKey().set(verb,path),new CachedRoute(m));
+        return true;
+    }
+    /** Find the route using a per-thread match object.
+     * Result is only valid until next call on same thread.
+     * @param verb request verb
+     * @param path request path
+     * @return match with endpoint and params or null if no route matched
+     */
+    public RouteMatch match(String verb,String path){
+        RouteMatch m=threadMatch.get();
+        return match(verb,path,m)?m:null;
     }
+    static final ThreadLocal<RouteMatch> threadMatch=ThreadLocal.withInitial(RouteMatch::new);
     /**
      * Will import endpoints to serve various paths.
      * Scans for @Routed (HTTP) annotations.
@@ -176,15 +258,18 @@ public class Router extends Processor{
             }
             type = type.getSuperclass();
         }
-        // Process HTTP routes
+        // Process HTTP routes, published as one table
+        ArrayList<RouteDetector> added=new ArrayList<>();
         for(Method m:httpRoutes){
             MethodEndPoint mm=new MethodEndPoint(target,m);
+            mm.setParent(this); // so endpoint sees our config
             // Check for @Async annotation and set async flag
             if(m.getAnnotation(Async.class)!=null){
                 mm.setAsync(true);
             }
-            addRoute(mm.getVerb(),mm.getPath(),mm);
+            added.add(new RouteDetector(mm.getVerb(),mm.getPath()).setPayload(mm));
         }
+        addRoutes(added);
         return this;
     }
 }
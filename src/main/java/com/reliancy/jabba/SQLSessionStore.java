@@ -0,0 +1,210 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.reliancy.dbo.SQLTerminal;
+
+/** Session store in a database table so nodes behind a balancer share sessions.
+ * Sessions are saved whole when their values or user change. Activity happens on every request so
+ * touches are only queued and a background flusher writes them in one batch per interval,
+ * which also deletes expired rows. A node going down loses at most one interval of activity.
+ */
+public class SQLSessionStore implements AppSession.Store {
+    /** source of connections, a SQLTerminal or plain jdbc. */
+    public static interface Connector{
+        Connection getConnection() throws SQLException;
+    }
+    private static final Logger logger=LoggerFactory.getLogger(SQLSessionStore.class);
+    final Connector connector;
+    final String table;
+    final ConcurrentHashMap<String,Long> touched=new ConcurrentHashMap<>();
+    ScheduledExecutorService flusher;
+    volatile boolean prepared;
+
+    public SQLSessionStore(Connector connector,String table){
+        this.connector=connector;
+        this.table=table;
+    }
+    public SQLSessionStore(SQLTerminal terminal){
+        this(terminal::getConnection,"app_session");
+    }
+    public String getTable(){
+        return table;
+    }
+    /** table definition, override for databases wanting other types. */
+    protected String createSQL(){
+        return "create table if not exists "+table+" (id varchar(64) primary key, created bigint, last_active bigint,"
+            +" max_age bigint, user_id integer, data blob)";
+    }
+    /** makes the table once. */
+    protected void prepare(Connection conn) throws SQLException{
+        if(prepared) return;
+        try(Statement st=conn.createStatement()){
+            st.execute(createSQL());
+        }
+        prepared=true;
+    }
+    @Override
+    public AppSession load(String id,App app,AppSession.Factory factory) throws IOException{
+        try(Connection conn=connector.getConnection()){
+            prepare(conn);
+            try(PreparedStatement ps=conn.prepareStatement("select created,last_active,max_age,user_id,data from "+table+" where id=?")){
+                ps.setString(1,id);
+                try(ResultSet rs=ps.executeQuery()){
+                    if(!rs.next()) return null;
+                    long created=rs.getLong(1);
+                    long active=rs.getLong(2);
+                    long maxAge=rs.getLong(3);
+                    int user=rs.getInt(4);
+                    Integer userId=rs.wasNull()?null:user;
+                    byte[] data=rs.getBytes(5);
+                    Long pending=touched.get(id);
+                    if(pending!=null && pending>active) active=pending;
+                    AppSession ss=factory.create(id,app);
+                    ss.restore(created,active,maxAge,userId,SessionCodec.decode(data));
+                    ss.setStore(this);
+                    return ss;
+                }
+            }
+        }catch(SQLException e){
+            throw new IOException("loading session "+id,e);
+        }
+    }
+    @Override
+    public void save(AppSession ss) throws IOException{
+        byte[] data=SessionCodec.encode(ss.getValues());
+        try(Connection conn=connector.getConnection()){
+            prepare(conn);
+            int n;
+            try(PreparedStatement ps=conn.prepareStatement("update "+table+" set created=?,last_active=?,max_age=?,user_id=?,data=? where id=?")){
+                bind(ps,ss,data);
+                n=ps.executeUpdate();
+            }
+            if(n==0){
+                try(PreparedStatement ps=conn.prepareStatement("insert into "+table+" (created,last_active,max_age,user_id,data,id) values (?,?,?,?,?,?)")){
+                    bind(ps,ss,data);
+                    ps.executeUpdate();
+                }
+            }
+            touched.remove(ss.getId(),ss.getLastActive());
+        }catch(SQLException e){
+            throw new IOException("saving session "+ss.getId(),e);
+        }
+    }
+    void bind(PreparedStatement ps,AppSession ss,byte[] data) throws SQLException{
+        ps.setLong(1,ss.getTimeCreated());
+        ps.setLong(2,ss.getLastActive());
+        ps.setLong(3,ss.getMaxAge());
+        Integer user=ss.getUserId();
+        if(user!=null) ps.setInt(4,user); else ps.setNull(4,Types.INTEGER);
+        ps.setBytes(5,data);
+        ps.setString(6,ss.getId());
+    }
+    @Override
+    public void delete(String id) throws IOException{
+        touched.remove(id);
+        try(Connection conn=connector.getConnection()){
+            prepare(conn);
+            try(PreparedStatement ps=conn.prepareStatement("delete from "+table+" where id=?")){
+                ps.setString(1,id);
+                ps.executeUpdate();
+            }
+        }catch(SQLException e){
+            throw new IOException("deleting session "+id,e);
+        }
+    }
+    @Override
+    public void touch(AppSession ss){
+        touched.merge(ss.getId(),ss.getLastActive(),Math::max);
+    }
+    /** touches waiting for the flusher. */
+    public int getPending(){
+        return touched.size();
+    }
+    /** writes queued touches in one batch, returns how many went out. */
+    public int flush() throws IOException{
+        if(touched.isEmpty()) return 0;
+        ArrayList<Map.Entry<String,Long>> batch=new ArrayList<>();
+        try(Connection conn=connector.getConnection()){
+            prepare(conn);
+            try(PreparedStatement ps=conn.prepareStatement("update "+table+" set last_active=? where id=? and last_active<?")){
+                for(Map.Entry<String,Long> e:touched.entrySet()){
+                    long active=e.getValue();
+                    ps.setLong(1,active);
+                    ps.setString(2,e.getKey());
+                    ps.setLong(3,active);
+                    ps.addBatch();
+                    batch.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(),active));
+                }
+                ps.executeBatch();
+            }
+        }catch(SQLException e){
+            throw new IOException("flushing session activity",e);
+        }
+        for(Map.Entry<String,Long> e:batch) touched.remove(e.getKey(),e.getValue()); // a newer touch stays queued
+        return batch.size();
+    }
+    /** deletes rows idle past their max age, returns how many went. */
+    public int purge() throws IOException{
+        try(Connection conn=connector.getConnection()){
+            prepare(conn);
+            try(PreparedStatement ps=conn.prepareStatement("delete from "+table+" where ?-last_active>max_age")){
+                ps.setLong(1,System.currentTimeMillis());
+                return ps.executeUpdate();
+            }
+        }catch(SQLException e){
+            throw new IOException("purging sessions",e);
+        }
+    }
+    /** flushes and purges every interval millis on a daemon thread. 0 or less stops. */
+    public synchronized SQLSessionStore startFlusher(long interval){
+        stopFlusher();
+        if(interval<=0) return this;
+        flusher=Executors.newSingleThreadScheduledExecutor(r->{
+            Thread t=new Thread(r,"session-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(()->{
+            try{
+                flush();
+                purge();
+            }catch(IOException|RuntimeException e){
+                logger.error("session flush failed:",e);
+            }
+        },interval,interval,TimeUnit.MILLISECONDS);
+        return this;
+    }
+    public synchronized void stopFlusher(){
+        if(flusher!=null) flusher.shutdownNow();
+        flusher=null;
+    }
+    @Override
+    public void close() throws IOException{
+        stopFlusher();
+        flush();
+    }
+}
@@ -0,0 +1,142 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Compact binary form of session values used by stores that keep sessions off heap.
+ * Each value is a tag byte and its payload: strings as length prefixed UTF-8, numbers and
+ * booleans as is, byte[] raw and other Serializable values through java serialization.
+ * Values of other types can not be restored and are skipped.
+ * Stored bytes may come from a shared file or a database row, so serialized values are read back
+ * through an allow-list filter (JDK value and collection types unless widened with allow). A value
+ * that fails to decode is logged and left out, the rest of the session still loads.
+ */
+final class SessionCodec {
+    static final byte STRING=1;
+    static final byte INT=2;
+    static final byte LONG=3;
+    static final byte DOUBLE=4;
+    static final byte BOOLEAN=5;
+    static final byte BYTES=6;
+    static final byte OBJECT=7;
+
+    static final String BASE_FILTER="maxdepth=20;maxrefs=10000;maxbytes=1048576;java.lang.*;java.util.*;java.time.*;java.math.*";
+    static String allowed=BASE_FILTER;
+    static volatile ObjectInputFilter filter=ObjectInputFilter.Config.createFilter(allowed+";!*");
+    private static final Logger logger=LoggerFactory.getLogger(SessionCodec.class);
+
+    private SessionCodec(){
+    }
+    /** lets classes matching pattern (as in ObjectInputFilter, e.g. com.acme.**) be read back. */
+    static synchronized void allow(String pattern){
+        allowed=allowed+";"+pattern;
+        filter=ObjectInputFilter.Config.createFilter(allowed+";!*");
+    }
+    static byte[] encode(Map<String,Object> values) throws IOException{
+        ByteArrayOutputStream buf=new ByteArrayOutputStream(256);
+        DataOutputStream out=new DataOutputStream(buf);
+        int count=0;
+        for(Object v:values.values()) if(accepts(v)) count++;
+        out.writeInt(count);
+        for(Map.Entry<String,Object> e:values.entrySet()){
+            Object v=e.getValue();
+            if(!accepts(v)) continue;
+            writeString(out,e.getKey());
+            if(v instanceof String){
+                out.writeByte(STRING);
+                writeString(out,(String)v);
+            }else if(v instanceof Integer){
+                out.writeByte(INT);
+                out.writeInt((Integer)v);
+            }else if(v instanceof Long){
+                out.writeByte(LONG);
+                out.writeLong((Long)v);
+            }else if(v instanceof Double){
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double)v);
+            }else if(v instanceof Boolean){
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean)v);
+            }else if(v instanceof byte[]){
+                out.writeByte(BYTES);
+                writeBytes(out,(byte[])v);
+            }else{
+                ByteArrayOutputStream obuf=new ByteArrayOutputStream();
+                try(ObjectOutputStream oout=new ObjectOutputStream(obuf)){
+                    oout.writeObject(v);
+                }
+                out.writeByte(OBJECT);
+                writeBytes(out,obuf.toByteArray());
+            }
+        }
+        out.flush();
+        return buf.toByteArray();
+    }
+    static Map<String,Object> decode(byte[] data) throws IOException{
+        HashMap<String,Object> ret=new HashMap<>();
+        if(data==null || data.length==0) return ret;
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(data));
+        int count=in.readInt();
+        for(int i=0;i<count;i++){
+            String key=readString(in);
+            byte tag=in.readByte();
+            switch(tag){
+                case STRING: ret.put(key,readString(in)); break;
+                case INT: ret.put(key,in.readInt()); break;
+                case LONG: ret.put(key,in.readLong()); break;
+                case DOUBLE: ret.put(key,in.readDouble()); break;
+                case BOOLEAN: ret.put(key,in.readBoolean()); break;
+                case BYTES: ret.put(key,readBytes(in)); break;
+                case OBJECT:
+                    byte[] raw=readBytes(in);
+                    try(ObjectInputStream oin=new ObjectInputStream(new ByteArrayInputStream(raw))){
+                        oin.setObjectInputFilter(filter);
+                        ret.put(key,oin.readObject());
+                    }catch(ClassNotFoundException|IOException e){
+                        logger.warn("session value {} skipped: {}",key,e.toString());
+                    }
+                    break;
+                default: throw new IOException("bad session value tag:"+tag);
+            }
+        }
+        return ret;
+    }
+    static boolean accepts(Object v){
+        return v instanceof Serializable;
+    }
+    static void writeString(DataOutputStream out,String s) throws IOException{
+        writeBytes(out,s.getBytes(StandardCharsets.UTF_8));
+    }
+    static String readString(DataInputStream in) throws IOException{
+        return new String(readBytes(in),StandardCharsets.UTF_8);
+    }
+    static void writeBytes(DataOutputStream out,byte[] b) throws IOException{
+        out.writeInt(b.length);
+        out.write(b);
+    }
+    static byte[] readBytes(DataInputStream in) throws IOException{
+        int len=in.readInt();
+        if(len<0) throw new IOException("bad length:"+len);
+        return in.readNBytes(len);
+    }
+}
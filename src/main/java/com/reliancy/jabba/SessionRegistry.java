@@ -0,0 +1,215 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Concurrent home of AppSessions by id.
+ * Ids hash to one of a fixed number of stripes, each an access ordered map under its own lock,
+ * so requests of different clients rarely contend. With a cap each stripe holds its share of it
+ * and drops its least recently used session to take a new one.
+ * A background sweeper drops sessions idle past their maxAge.
+ * publish and retract run the session hooks (outside the stripe lock), put and remove do not and
+ * are what the hooks use to register extra ids.
+ * Live, evicted (over the cap) and expired (swept) counts are kept as gauges.
+ * As a Store it is the default heap home, sessions stay live objects so saving one already held is free.
+ */
+public class SessionRegistry implements AppSession.Store {
+    static final class Stripe extends LinkedHashMap<String,AppSession>{
+        Stripe(){super(16,0.75f,true);}
+    }
+    private static final Logger logger=LoggerFactory.getLogger(SessionRegistry.class);
+    final Stripe[] stripes;
+    final int mask;
+    volatile int capacity;
+    final AtomicInteger live=new AtomicInteger();
+    final LongAdder evicted=new LongAdder();
+    final LongAdder expired=new LongAdder();
+    ScheduledExecutorService sweeper;
+
+    /** stripe count is rounded up to a power of 2, capacity of 0 or less means no cap. */
+    public SessionRegistry(int stripeCount,int capacity){
+        int n=1;
+        while(n<stripeCount) n<<=1;
+        stripes=new Stripe[n];
+        for(int i=0;i<n;i++) stripes[i]=new Stripe();
+        mask=n-1;
+        this.capacity=capacity;
+    }
+    public SessionRegistry(){
+        this(16,0);
+    }
+    Stripe stripeOf(String id){
+        int h=id.hashCode();
+        return stripes[(h^(h>>>16))&mask];
+    }
+    int stripeCap(){
+        int cap=capacity;
+        return cap>0?Math.max(1,(cap+stripes.length-1)/stripes.length):0;
+    }
+    public int getCapacity(){
+        return capacity;
+    }
+    /** sets the cap, applied as sessions come in. */
+    public SessionRegistry setCapacity(int c){
+        capacity=c;
+        return this;
+    }
+    public AppSession get(String id){
+        Stripe s=stripeOf(id);
+        synchronized(s){
+            return s.get(id);
+        }
+    }
+    /** stores without hooks or cap, returns the session it replaced. */
+    public AppSession put(String id,AppSession ss){
+        Stripe s=stripeOf(id);
+        AppSession old;
+        synchronized(s){
+            old=s.put(id,ss);
+        }
+        if(old==null) live.incrementAndGet();
+        return old;
+    }
+    /** removes without hooks. */
+    public AppSession remove(String id){
+        Stripe s=stripeOf(id);
+        AppSession old;
+        synchronized(s){
+            old=s.remove(id);
+        }
+        if(old!=null) live.decrementAndGet();
+        return old;
+    }
+    /** stores ss under id and runs its publish hook, a replaced or evicted session is retracted. */
+    public void publish(String id,AppSession ss){
+        Stripe s=stripeOf(id);
+        AppSession old;
+        AppSession victim=null;
+        int cap=stripeCap();
+        synchronized(s){
+            old=s.put(id,ss);
+            if(cap>0 && s.size()>cap){
+                Iterator<Map.Entry<String,AppSession>> it=s.entrySet().iterator();
+                victim=it.next().getValue(); // least recently used
+                it.remove();
+            }
+        }
+        if(old==null) live.incrementAndGet();
+        if(victim!=null){
+            live.decrementAndGet();
+            evicted.increment();
+        }
+        if(old!=ss){
+            if(old!=null) old.onRetract(this);
+            ss.onPublish(this);
+        }
+        if(victim!=null && victim!=ss) victim.onRetract(this);
+    }
+    /** removes the session under id and runs its retract hook. */
+    public AppSession retract(String id){
+        AppSession old=remove(id);
+        if(old!=null) old.onRetract(this);
+        return old;
+    }
+    /** drops expired sessions (with their extra ids), returns how many sessions went. */
+    public int sweep(){
+        Set<AppSession> gone=Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Stripe s:stripes){
+            synchronized(s){
+                for(Iterator<AppSession> it=s.values().iterator();it.hasNext();){
+                    AppSession ss=it.next();
+                    if(ss.isExpired()){
+                        it.remove();
+                        live.decrementAndGet();
+                        gone.add(ss);
+                    }
+                }
+            }
+        }
+        for(AppSession ss:gone){
+            expired.increment();
+            ss.onRetract(this);
+        }
+        return gone.size();
+    }
+    /** sweeps every interval millis on a daemon thread, replaces a running sweeper. 0 or less stops. */
+    public synchronized SessionRegistry startSweeper(long interval){
+        stopSweeper();
+        if(interval<=0) return this;
+        sweeper=Executors.newSingleThreadScheduledExecutor(r->{
+            Thread t=new Thread(r,"session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(()->{
+            try{
+                sweep();
+            }catch(RuntimeException e){
+                logger.error("session sweep failed:",e);
+            }
+        },interval,interval,TimeUnit.MILLISECONDS);
+        return this;
+    }
+    public synchronized void stopSweeper(){
+        if(sweeper!=null) sweeper.shutdownNow();
+        sweeper=null;
+    }
+    public synchronized boolean isSweeping(){
+        return sweeper!=null;
+    }
+    public void clear(){
+        for(Stripe s:stripes){
+            synchronized(s){
+                live.addAndGet(-s.size());
+                s.clear();
+            }
+        }
+    }
+    @Override
+    public AppSession load(String id,App app,AppSession.Factory factory){
+        return get(id);
+    }
+    @Override
+    public void save(AppSession ss){
+        if(get(ss.getId())!=ss) publish(ss.getId(),ss);
+    }
+    @Override
+    public void delete(String id){
+        retract(id);
+    }
+    /** sessions (and extra ids) held now. */
+    public int getLive(){
+        return live.get();
+    }
+    /** sessions dropped to stay under the cap. */
+    public long getEvicted(){
+        return evicted.sum();
+    }
+    /** sessions dropped by the sweeper. */
+    public long getExpired(){
+        return expired.sum();
+    }
+    @Override
+    public String toString(){
+        return String.format("live:%d/%d evicted:%d expired:%d",getLive(),capacity,getEvicted(),getExpired());
+    }
+}
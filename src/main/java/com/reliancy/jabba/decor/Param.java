@@ -0,0 +1,28 @@
+/*
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License.
+*/
+package com.reliancy.jabba.decor;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Optional annotation on a @Routed method parameter.
+ * Renames the parameter and/or pins where its value comes from.
+ * Without it the name is the java parameter name and the source is picked
+ * at import: path if the route has such a {param}, body for Rec and DBO types,
+ * otherwise any. Other object types bind the body only with from=BODY.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Param {
+    public enum Source{ANY,PATH,QUERY,HEADER,COOKIE,BODY}
+    String value() default "";
+    Source from() default Source.ANY;
+}
@@ -0,0 +1,165 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba.sec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.reliancy.util.ClockCache;
+
+/** Compact signed auth token: actor id, issue time, expiry and a hash of the client address under
+ * an HMAC-SHA256.
+ * Issued after a login and checked instead of decrypting credentials, so a request never
+ * repeats a password check. Tokens that verified once are kept in a cache and later only have
+ * their expiry, address and revocation compared.
+ * Revoking an actor (logout, password change) voids every token issued to it until then. Revocations
+ * are held in memory by the signer, they do not survive a restart.
+ * Text form is PREFIX followed by url safe base64 of the 24 byte payload and 16 bytes of MAC.
+ */
+public class AuthToken {
+    public static final String PREFIX="t1.";
+    static final int PAYLOAD=24;
+    static final int MAC=16;
+    final Integer actorId;
+    final long issued;
+    final long expires;
+    final int address;
+
+    AuthToken(Integer actorId,long issued,long expires,int address){
+        this.actorId=actorId;
+        this.issued=issued;
+        this.expires=expires;
+        this.address=address;
+    }
+    public Integer getActorId(){
+        return actorId;
+    }
+    public long getIssued(){
+        return issued;
+    }
+    public long getExpires(){
+        return expires;
+    }
+    public boolean isExpired(){
+        return System.currentTimeMillis()>expires;
+    }
+    /** true if token was issued for this client address. */
+    public boolean isFrom(String addr){
+        return address==hashAddress(addr);
+    }
+    static int hashAddress(String addr){
+        return addr!=null?addr.hashCode():0;
+    }
+    public static boolean isToken(String text){
+        return text!=null && text.startsWith(PREFIX);
+    }
+
+    /** Issues and verifies tokens under one key. */
+    public static class Signer{
+        final SecretKeySpec key;
+        final ThreadLocal<Mac> macs;
+        final ClockCache<String,AuthToken> verified;
+        final ConcurrentHashMap<Integer,Long> revoked=new ConcurrentHashMap<>();
+
+        public Signer(byte[] secret,int cacheSize){
+            key=new SecretKeySpec(secret,"HmacSHA256");
+            macs=ThreadLocal.withInitial(()->{
+                try{
+                    Mac m=Mac.getInstance("HmacSHA256");
+                    m.init(key);
+                    return m;
+                }catch(GeneralSecurityException e){
+                    throw new IllegalStateException("HmacSHA256 not available",e);
+                }
+            });
+            verified=new ClockCache<>(cacheSize);
+        }
+        public Signer(String secret){
+            this(secret.getBytes(StandardCharsets.UTF_8),4096);
+        }
+        byte[] sign(byte[] payload){
+            Mac m=macs.get();
+            return Arrays.copyOf(m.doFinal(payload),MAC);
+        }
+        /** token text for actor valid for ttl millis from addr. */
+        public String issue(Integer actorId,long ttl,String addr){
+            if(actorId==null) throw new IllegalArgumentException("actor has no id, tokens name actors by id");
+            long now=System.currentTimeMillis();
+            Long voided=revoked.get(actorId);
+            long issued=voided!=null?Math.max(now,voided+1):now;  // never void a token issued after a revoke
+            ByteBuffer buf=ByteBuffer.allocate(PAYLOAD+MAC);
+            buf.putInt(actorId);
+            buf.putLong(issued);
+            buf.putLong(now+ttl);
+            buf.putInt(hashAddress(addr));
+            byte[] payload=Arrays.copyOf(buf.array(),PAYLOAD);
+            buf.put(sign(payload));
+            return PREFIX+Base64.getUrlEncoder().withoutPadding().encodeToString(buf.array());
+        }
+        /** token if text is ours, unexpired and from addr, else null. */
+        public AuthToken verify(String text,String addr){
+            AuthToken tok=check(text);
+            if(tok==null || tok.isExpired() || isRevoked(tok)) return null;
+            return tok.isFrom(addr)?tok:null;
+        }
+        /** token if text carries our signature (expired or not), else null. */
+        public AuthToken check(String text){
+            if(!isToken(text)) return null;
+            AuthToken tok=verified.get(text);
+            if(tok==null){
+                tok=decode(text);
+                if(tok==null) return null;
+                verified.put(text,tok);
+            }
+            if(tok.isExpired()) verified.remove(text);
+            return tok;
+        }
+        AuthToken decode(String text){
+            String body=text.substring(PREFIX.length());
+            byte[] raw;
+            try{
+                raw=Base64.getUrlDecoder().decode(body);
+            }catch(IllegalArgumentException e){
+                return null;
+            }
+            if(raw.length!=PAYLOAD+MAC) return null;
+            if(!body.equals(Base64.getUrlEncoder().withoutPadding().encodeToString(raw))) return null; // one spelling per token, spare bits clear
+            byte[] payload=Arrays.copyOf(raw,PAYLOAD);
+            byte[] mac=Arrays.copyOfRange(raw,PAYLOAD,raw.length);
+            if(!MessageDigest.isEqual(mac,sign(payload))) return null;
+            ByteBuffer buf=ByteBuffer.wrap(payload);
+            return new AuthToken(buf.getInt(),buf.getLong(),buf.getLong(),buf.getInt());
+        }
+        /** voids all tokens issued to actor so far. */
+        public void revoke(Integer actorId){
+            if(actorId==null) return;
+            revoked.merge(actorId,System.currentTimeMillis(),Math::max);
+            verified.removeIf((text,tok)->actorId.equals(tok.actorId));
+        }
+        /** true if the actor of tok was revoked after tok was issued. */
+        public boolean isRevoked(AuthToken tok){
+            Long voided=revoked.get(tok.actorId);
+            return voided!=null && tok.issued<=voided;
+        }
+        /** drops a token from the cache, it still verifies until it expires. */
+        public void forget(String text){
+            verified.remove(text);
+        }
+        public ClockCache<String,AuthToken> getCache(){
+            return verified;
+        }
+    }
+}
@@ -39,11 +39,15 @@ import java.security.SecureRandom;
  * Initialization of auth will occur outside:
  *  - for gui after login we will set an auth cookie to remember user and password
  *  - for APIs if user is required will issue error 401 with WWW-Authenticate header
+ * The auth cookie holds an AuthToken signed with the secret (see setAuthCookie), verified tokens are
+ * cached so a returning client costs a lookup and an actor load by id. Older cookies with encrypted
+ * credentials are still accepted.
  */
 public class SecurityPolicy extends Processor implements MethodDecorator.Factory{
     public static String REALM="reliancy";
     public static final String KEY_NAME="jbauth";
     protected String secret=null;
+    protected AuthToken.Signer tokens;
     protected ArrayList<SecurityProtocol> protocols;
     protected SecurityActor admin;
     protected SecurityActor guest;
@@ -82,6 +86,27 @@ public class SecurityPolicy extends Processor implements MethodDecorator.Factory
         }
         return secret;
     }
+    public synchronized AuthToken.Signer getTokens(){
+        if(tokens==null) tokens=new AuthToken.Signer(getSecret());
+        return tokens;
+    }
+    /** token for actor bound to the client address, valid for AUTH_TOKEN_TTL. */
+    public String issueToken(SecurityActor actor,String address){
+        Config conf=getConfig();
+        long ttl=conf!=null?Config.AUTH_TOKEN_TTL.get(conf):Config.AUTH_TOKEN_TTL.getInitial();
+        return getTokens().issue(actor.getId(),ttl,address);
+    }
+    /** voids every auth token issued to actor so far, call on logout or password change. */
+    public void revokeTokens(SecurityActor actor){
+        getTokens().revoke(actor.getId());
+    }
+    /** remembers actor for later requests of this client, call after a login. */
+    public void setAuthCookie(Request req,Response resp,SecurityActor actor){
+        Config conf=getConfig();
+        long ttl=conf!=null?Config.AUTH_TOKEN_TTL.get(conf):Config.AUTH_TOKEN_TTL.getInitial();
+        boolean secure="https".equalsIgnoreCase(req.getScheme());
+        resp.setCookie(KEY_NAME,issueToken(actor,req.getRemoteAddress()),(int)(ttl/1000),secure,true);
+    }
     public SecurityPolicy setSecured(String path,Secured info){
         if(checkSecured(path)!=null) throw new IllegalStateException("Secured path cannot be secured again:"+path);
         Pattern regex=Pattern.compile(path);
@@ -98,14 +123,16 @@ public class SecurityPolicy extends Processor implements MethodDecorator.Factory
     @Override
     public void beforeServe(Request request, Response response) throws IOException {
         // we will recover a user here
-        CallSession css=CallSession.getInstance();
-        AppSession ass=(AppSession) css.getAppSession();
-        if(ass==null || ass.getUser()!=null){
+        CallSession css=CallSession.of(request);
+        AppSession ass=(AppSession) css.peekAppSession();
+        if(ass!=null && ass.getUser()==null && ass.getUserId()!=null) restoreUser(ass);
+        if(ass!=null && ass.getUser()!=null){
             return; // we got a user all good
         }
         try{
             SecurityActor user=authenticate(request);
-            if(user!=null) ass.setUser(user);
+            // a user needs a session, without one (excluded path) it is checked on every request
+            if(user!=null && css.hasAppSession()) ((AppSession)css.getAppSession()).setUser(user);
         }catch(NotAuthentic bad_cred){
             // we could not establish user
             response.setStatus(Response.HTTP_FORBIDDEN);
@@ -132,6 +159,16 @@ public class SecurityPolicy extends Processor implements MethodDecorator.Factory
     @Override
     public void afterServe(Request request, Response response) throws IOException {
     }
+    /** reloads the user of a session read back from a store which kept only the user id. */
+    protected void restoreUser(AppSession ass){
+        if(store==null) return;
+        try{
+            Securable sec=loadSecurable(admin,ass.getUserId());
+            if(sec instanceof SecurityActor) ass.restoreUser((SecurityActor)sec);
+        }catch(IOException|NotPermitted e){
+            log().warn("could not restore user "+ass.getUserId()+":"+e.getMessage());
+        }
+    }
     /** authenticates or establishes user based on user and password.
      * same as loadActor but with first param being admin account.
      * @param name userid
@@ -154,23 +191,37 @@ public class SecurityPolicy extends Processor implements MethodDecorator.Factory
         // must recover user from cookies or by redirecting to login
         String verb=req.getVerb();
         String path=req.getPath();
-        log().info("Path:"+path);
+        log().debug("Path:{}",path);
         String secpath=verb+" "+path;
         Secured secinfo=checkSecured(secpath);
         if(secinfo==null){
             return null; // this path is not secured
         }
-        log().info("\tuser is needed, send back auth resp");
+        log().debug("\tuser is needed, send back auth resp");
         String auth=req.getCookie(KEY_NAME,null);
         //log().info("Auth1:"+auth);
+        if(AuthToken.isToken(auth)){
+            AuthToken tok=getTokens().check(auth);
+            if(tok==null) throw new NotAuthentic("invalid auth token");
+            if(tok.isExpired() || getTokens().isRevoked(tok)) throw new NeedCredentials().put("login_form",secinfo.login_form());
+            if(!tok.isFrom(req.getRemoteAddress())) throw new NotAuthentic("auth token from another address");
+            try {
+                Securable user=loadSecurable(admin,tok.getActorId());
+                if(user instanceof SecurityActor) return (SecurityActor)user;
+                else throw new NotAuthentic("unknown actor");
+            } catch (NotPermitted e) {
+                throw new NotAuthentic("not permitted to authenticate",e);
+            }
+        }
         if(auth!=null){
+            // older cookie with encrypted credentials
             // we have an auth cookie - encoded user login
             Map<String,String> kv=Handy.decrypt(getSecret(),auth);
             String username=(kv.get("n"));
             String password=(kv.get("p"));
             String address=(kv.get("a"));
             if(address!=null && !address.equals(req.getRemoteAddress())){
-                return null; // invalid auth cookie
+                throw new NotAuthentic("auth cookie from another address");
             }
             try {
                 SecurityActor user = loadActor(admin,username,password);
@@ -10,6 +10,9 @@ package com.reliancy.jabba.sec.plain;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.reliancy.dbo.Bag;
 import com.reliancy.jabba.Path;
@@ -25,8 +28,10 @@ import com.reliancy.jabba.sec.SecurityStore;
  * PlainSecurityStore is a container for plain security elements.
  * It will implement a simple in-memory list of items. Optionally it will
  * have be able to load or save its state to disk as json.
- * 
- *
+ * Lookups go through hash indexes by id, by lower-cased actor name and from actor and
+ * subject to their permits. Names need not be unique, the name index keeps every actor
+ * of a name in save order. Saves and deletes update the indexes under the store lock,
+ * loads read them without locking.
  */
 public class PlainSecurityStore implements SecurityStore {
     final Bag<PlainSecurable> securables=new Bag<PlainSecurable>();
@@ -35,14 +40,74 @@ public class PlainSecurityStore implements SecurityStore {
     PlainActor guest;
     PlainActor admin;
     Path path;
+    int nextId=1;
+    int nextPermitId=1;
+    final ConcurrentHashMap<Integer,PlainSecurable> byId=new ConcurrentHashMap<>();
+    final ConcurrentHashMap<String,List<SecurityActor>> byName=new ConcurrentHashMap<>();
+    final ConcurrentHashMap<PlainSecurable,String> names=new ConcurrentHashMap<>();   // name each actor is indexed under
+    final ConcurrentHashMap<Integer,PlainPermit> permitById=new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Securable,List<SecurityPermit>> byActor=new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Securable,List<SecurityPermit>> bySubject=new ConcurrentHashMap<>();
+    final ConcurrentHashMap<PlainPermit,Securable[]> permitKeys=new ConcurrentHashMap<>();  // actor and subject each permit is indexed under
     
     public PlainSecurityStore() {
         guest=(PlainActor) newActor();
-        guest.setPassword("").setName("guest").setEssential(true);
+        guest.setPassword("").setName("guest").setEssential(true).setId(GUEST);
         admin=(PlainActor) newActor();
-        admin.setPassword("admin").setName("admin").setTitle("Administrator").setEssential(true);
+        admin.setPassword("admin").setName("admin").setTitle("Administrator").setEssential(true).setId(ADMIN);
         securables.add(guest);
         securables.add(admin);
+        index(guest);
+        index(admin);
+    }
+    static String nameKey(String name){
+        return name!=null?name.toLowerCase(Locale.ROOT):null;
+    }
+    void index(PlainSecurable sec){
+        if(sec.getId()!=null) byId.put(sec.getId(),sec);
+        if(!(sec instanceof SecurityActor)) return;
+        String key=nameKey(sec.getName());
+        String old=names.get(sec);
+        if(old!=null && !old.equals(key)) unindexName(sec,old);
+        if(key==null) return;
+        if(key.equals(names.put(sec,key))) return;
+        byName.computeIfAbsent(key,k->new CopyOnWriteArrayList<>()).add((SecurityActor)sec);
+    }
+    void unindex(PlainSecurable sec){
+        if(sec.getId()!=null) byId.remove(sec.getId(),sec);
+        String old=names.remove(sec);
+        if(old!=null) unindexName(sec,old);
+    }
+    /** drops sec from the actors of a name. */
+    void unindexName(PlainSecurable sec,String key){
+        byName.computeIfPresent(key,(k,list)->{
+            list.remove(sec);
+            return list.isEmpty()?null:list;
+        });
+    }
+    void index(PlainPermit p){
+        if(p.getId()!=null) permitById.put(p.getId(),p);
+        Securable[] old=permitKeys.get(p);
+        if(old!=null){
+            if(old[0]==p.getActor() && old[1]==p.getSubject()) return;
+            unindex(p);
+        }
+        permitKeys.put(p,new Securable[]{p.getActor(),p.getSubject()});
+        if(p.getActor()!=null) byActor.computeIfAbsent(p.getActor(),k->new CopyOnWriteArrayList<>()).add(p);
+        if(p.getSubject()!=null) bySubject.computeIfAbsent(p.getSubject(),k->new CopyOnWriteArrayList<>()).add(p);
+    }
+    void unindex(PlainPermit p){
+        if(p.getId()!=null) permitById.remove(p.getId(),p);
+        Securable[] old=permitKeys.remove(p);
+        if(old==null) return;
+        if(old[0]!=null) dropFrom(byActor,old[0],p);
+        if(old[1]!=null) dropFrom(bySubject,old[1],p);
+    }
+    static void dropFrom(ConcurrentHashMap<Securable,List<SecurityPermit>> idx,Securable key,PlainPermit p){
+        idx.computeIfPresent(key,(k,list)->{
+            list.remove(p);
+            return list.isEmpty()?null:list;
+        });
     }
     public PlainSecurityStore setPath(Path p){
         path=p;
@@ -75,7 +140,11 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin && actor!=sec.getOwner()) throw new NotPermitted("admin or owner rights required");
         }
-        securables.remove((PlainSecurable)sec);
+        PlainSecurable psec=(PlainSecurable)sec;
+        synchronized(this){
+            securables.remove(psec);
+            unindex(psec);
+        }
     }
 
     @Override
@@ -84,7 +153,13 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin && actor!=sec.getOwner()) throw new NotPermitted("admin or owner rights required");
         }
-        securables.add((PlainSecurable)sec);
+        PlainSecurable psec=(PlainSecurable)sec;
+        synchronized(this){
+            if(psec.getId()==null) psec.setId(nextId++); // tokens and sessions refer to actors by id
+            else if(psec.getId()>=nextId) nextId=psec.getId()+1;   // never hand out an id a caller picked
+            securables.add(psec);
+            index(psec);
+        }
     }
 
     @Override
@@ -93,12 +168,8 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin) throw new NotPermitted("admin rights required");
         }
-        if(id==ADMIN) return admin;
-        if(id==GUEST) return guest;
-        for(Securable sec:securables){
-            if(sec.getId()==id) return sec;
-        }
-        return null;
+        if(id==null) return null;
+        return byId.get(id);
     }
 
     @Override
@@ -107,16 +178,17 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin) throw new NotPermitted("admin rights required");
         }
-        for(Securable sec:securables){
-            if(!(sec instanceof SecurityActor)) continue; // skip over non actors
-            SecurityActor a=(SecurityActor) sec;
-            if(!a.getName().equalsIgnoreCase(name)) continue;       // name mismatch
-            if(pwd!=null && a.authPassword(pwd)==a)  return a;      // match on password if provided
-            boolean actor_permitted=actor==admin;
-            if(!actor_permitted) continue;                          // actor is not permitted
-            return a;                                               // if permitted lookup by name role or user
+        String key=nameKey(name);
+        List<SecurityActor> all=key!=null?byName.get(key):null;
+        if(all==null || all.isEmpty()) return null;                 // name mismatch
+        if(pwd!=null){
+            for(SecurityActor a:all){
+                if(a.authPassword(pwd)==a) return a;                // match on password if provided
+            }
         }
-        return null;
+        boolean actor_permitted=actor==admin;
+        if(!actor_permitted) return null;                           // actor is not permitted
+        return all.get(0);                                          // if permitted lookup by name role or user
     }
 
     @Override
@@ -126,7 +198,7 @@ public class PlainSecurityStore implements SecurityStore {
             if(actor!=admin && actor!=sec.getOwner()) throw new NotPermitted("admin or owner rights required");
         }
         ArrayList<Securable> ret=new ArrayList<>();
-        for(Securable s:securables){
+        for(Securable s:byId.values()){
             if(sec==s.getOwner()) ret.add(s);
         }
         return ret;
@@ -138,7 +210,11 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin) throw new NotPermitted("admin or owner rights required");
         }
-        permits.remove((PlainPermit)permit);
+        PlainPermit p=(PlainPermit)permit;
+        synchronized(this){
+            permits.remove(p);
+            unindex(p);
+        }
     }
 
     @Override
@@ -147,7 +223,12 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin) throw new NotPermitted("admin or owner rights required");
         }
-        permits.add((PlainPermit)permit);
+        PlainPermit p=(PlainPermit)permit;
+        synchronized(this){
+            if(p.id==null) p.id=nextPermitId++;
+            permits.add(p);
+            index(p);
+        }
     }
 
     @Override
@@ -156,10 +237,8 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin) throw new NotPermitted("admin rights required");
         }
-        for(SecurityPermit p:permits){
-            if(p.getId()==id) return p;
-        }
-        return null;
+        if(id==null) return null;
+        return permitById.get(id);
     }
     @Override
     public List<SecurityPermit> loadPermitsBy(SecurityActor actor, SecurityActor sec) throws IOException, NotPermitted {
@@ -167,11 +246,8 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin) throw new NotPermitted("admin rights required");
         }
-        ArrayList<SecurityPermit> ret=new ArrayList<>();
-        for(SecurityPermit p:permits){
-            if(p.getActor()==sec) ret.add(p);
-        }
-        return ret;
+        List<SecurityPermit> on=sec!=null?byActor.get(sec):null;
+        return on!=null?new ArrayList<>(on):new ArrayList<>();
     }
     @Override
     public List<SecurityPermit> loadPermitsOn(SecurityActor actor, Securable sec) throws IOException, NotPermitted {
@@ -179,11 +255,8 @@ public class PlainSecurityStore implements SecurityStore {
             // if policy is set only admin level users can access actors via securable
             if(actor!=admin) throw new NotPermitted("admin rights required");
         }
-        ArrayList<SecurityPermit> ret=new ArrayList<>();
-        for(SecurityPermit p:permits){
-            if(p.getSubject()==sec) ret.add(p);
-        }
-        return ret;
+        List<SecurityPermit> on=sec!=null?bySubject.get(sec):null;
+        return on!=null?new ArrayList<>(on):new ArrayList<>();
     }
 
     @Override
@@ -0,0 +1,74 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba.servlet;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.reliancy.jabba.CallSession;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Recycles request/response wrappers (with their CallSession) for JettyApp.service.
+ * A pair goes back to the pool from CallSession.release when the last hold is dropped, that is
+ * after the response completed and any promise chain ran its last stage. Until then no slot refers to it.
+ * Each platform thread keeps one spare pair so taking and giving back needs no locking.
+ * A pair goes back to the slot of the thread that acquired it, also when an async chain drops the
+ * last hold on an executor thread, so spares end up where they are taken again.
+ * Virtual threads run a single task so they keep nothing and their pairs are left to the gc.
+ * Like with the servlet container, code must not hold on to request or response past completion.
+ */
+public class ExchangePool {
+    final ThreadLocal<AtomicReference<ServletResponse>> spare=ThreadLocal.withInitial(AtomicReference::new);
+    final LongAdder created=new LongAdder();
+    final LongAdder reused=new LongAdder();
+
+    /** returns response (with request and session reachable from it) wrapping the servlet pair. */
+    public ServletResponse acquire(HttpServletRequest http_request,HttpServletResponse http_response){
+        AtomicReference<ServletResponse> home=Thread.currentThread().isVirtual()?null:spare.get();
+        ServletResponse resp=home!=null?home.getAndSet(null):null;
+        if(resp!=null){
+            reused.increment();
+        }else{
+            resp=create();
+            created.increment();
+        }
+        ((ServletRequest)resp.getRequest()).bind(http_request);
+        resp.bind(http_response);
+        resp.home=home;
+        return resp;
+    }
+    protected ServletResponse create(){
+        final ServletRequest req=new ServletRequest(null);
+        final ServletResponse resp=new ServletResponse(req,null);
+        CallSession ss=new CallSession();
+        ss.setOnRelease(()->release(resp));
+        req.setSession(ss);
+        return resp;
+    }
+    /** resets the pair and keeps it as spare of the thread that acquired it if that has none. */
+    protected void release(ServletResponse resp){
+        AtomicReference<ServletResponse> home=resp.home;
+        resp.home=null;
+        ((ServletRequest)resp.getRequest()).reset();
+        resp.reset();
+        if(home!=null) home.compareAndSet(null,resp);
+    }
+    public long getCreated(){
+        return created.sum();
+    }
+    public long getReused(){
+        return reused.sum();
+    }
+    @Override
+    public String toString(){
+        return String.format("created:%d reused:%d",getCreated(),getReused());
+    }
+}
@@ -8,10 +8,13 @@ You may not use this file except in compliance with the License.
 package com.reliancy.jabba.servlet;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import com.reliancy.jabba.App;
 import com.reliancy.jabba.ArgsConfig;
 import com.reliancy.jabba.CallSession;
+import com.reliancy.jabba.ChunkWriter;
 import com.reliancy.jabba.Config;
 import com.reliancy.jabba.FileServer;
 import com.reliancy.jabba.Response;
@@ -21,6 +24,8 @@ import com.reliancy.jabba.sec.SecurityPolicy;
 import com.reliancy.jabba.sec.plain.PlainSecurityStore;
 import com.reliancy.jabba.ui.Menu;
 import com.reliancy.jabba.ui.MenuItem;
+import com.reliancy.jabba.ui.Template;
+import com.reliancy.util.FileWatcher;
 import com.reliancy.util.Log;
 import com.reliancy.util.Resources;
 
@@ -32,6 +37,8 @@ import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
 import org.eclipse.jetty.ee10.servlet.ServletHolder;
 import org.eclipse.jetty.ee10.websocket.jakarta.server.config.JakartaWebSocketServletContainerInitializer;
@@ -65,6 +72,7 @@ public class JettyApp extends App implements Servlet {
     protected Connector[] connectors;
     protected Server jetty;
     protected ServletConfig servletConfig;
+    protected final ExchangePool exchanges=new ExchangePool();
     private volatile State _state;
 
     public JettyApp() {
@@ -73,6 +81,10 @@ public class JettyApp extends App implements Servlet {
         _state=State.STOPPED;
         this.addShutdownHook();
     }
+    /** pool of request/response wrappers reused across calls to service. */
+    public ExchangePool getExchangePool(){
+        return exchanges;
+    }
     public Connector[] getConnectors(){
         if(connectors!=null) return connectors;
         // Create HTTP Config
@@ -209,19 +221,17 @@ public class JettyApp extends App implements Servlet {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
         HttpServletResponse httpResponse = (HttpServletResponse) response;
         
+        final com.reliancy.jabba.servlet.ServletResponse resp = exchanges.acquire(httpRequest, httpResponse);
         final com.reliancy.jabba.servlet.ServletRequest req = 
-            new com.reliancy.jabba.servlet.ServletRequest(httpRequest);
-        final com.reliancy.jabba.servlet.ServletResponse resp = 
-            new com.reliancy.jabba.servlet.ServletResponse(req, httpResponse);
-        final CallSession ss=CallSession.getInstance();
+            (com.reliancy.jabba.servlet.ServletRequest) resp.getRequest();
+        // session comes with the pair, its last release hands the pair back to the pool
+        final CallSession ss=req.getSession();
+        ss.beginFresh(null, req, resp);
         // install executor just in case we need it, especially for async processing
-        ss.setExecutor(
-            jetty.getThreadPool() != null ? 
-            jetty.getThreadPool() : java.util.concurrent.ForkJoinPool.commonPool()
-            );
-        req.setSession(ss);
+        Executor exec=getExecutor();
+        if(exec==null) exec=jetty.getThreadPool();
+        ss.setExecutor(exec);
         try{
-            ss.beginFresh(null, req, resp);
             process(req,resp);
         }catch(Exception ioex){ 
             try{
@@ -233,9 +243,14 @@ public class JettyApp extends App implements Servlet {
             // Only mark as handled if not async (async will be completed later)
             // Only end session if not async (async will end session when completing)
             if(resp.isPromised()==false){
-                ss.end();
-                resp.complete();
+                try{
+                    resp.complete();
+                }finally{
+                    ss.end(); // recycles req/resp, do not touch them after
+                }
             }else{
+                // request thread lets go, the promise chain holds the session until its last step
+                ss.end();
                 resp.promiseLast((result, error) -> {
                     if(result instanceof Exception){
                         error=(Exception)result;
@@ -279,6 +294,7 @@ public class JettyApp extends App implements Servlet {
             log().info("WebSocket support initialized");
         });
         jetty.setHandler(context);
+        if(Boolean.TRUE.equals(Config.SERVER_VIRTUAL_THREADS.get(conf))) useVirtualThreads();
         // step 4: set connectors and start jetty
         try{
             log().info("starting...");
@@ -291,6 +307,18 @@ public class JettyApp extends App implements Servlet {
             }else throw ex;
         }
     }
+    /** lets jetty run blocking request handling on virtual threads, selectors stay on the platform pool.
+     * must be called before jetty starts.
+     */
+    protected void useVirtualThreads(){
+        ThreadPool pool=jetty.getThreadPool();
+        if(pool instanceof VirtualThreads.Configurable && VirtualThreads.areSupported()){
+            ((VirtualThreads.Configurable)pool).setVirtualThreadsExecutor(VirtualThreads.getNamedVirtualThreadsExecutor("jabba-"));
+            log().info("jetty uses virtual threads");
+        }else{
+            log().warn("virtual threads not available for jetty pool:{}",pool);
+        }
+    }
     public void work() throws InterruptedException{
         setState(State.RUNNING);
         log().info("Server is running. Press Ctrl-C to exit.");
@@ -324,6 +352,19 @@ public class JettyApp extends App implements Servlet {
             }
         }));
     }
+    /** compiles everything under /templates/ ahead of the first request and reports the times. */
+    protected void precompileTemplates(){
+        long t0=System.nanoTime();
+        try{
+            Map<String,Long> times=Template.precompile();
+            if(log().isDebugEnabled()){
+                for(Map.Entry<String,Long> e:times.entrySet()) log().debug("template {} compiled in {} us",e.getKey(),e.getValue()/1000);
+            }
+            log().info("precompiled {} templates in {} ms",times.size(),(System.nanoTime()-t0)/1000000);
+        }catch(IOException e){
+            log().warn("template precompile failed:{}",e.getMessage());
+        }
+    }
     /** called from begin just before jetty starts. 
      * this method is called before middleware is notified so we can add or adjust config.
      * override to hook up your application.
@@ -338,6 +379,10 @@ public class JettyApp extends App implements Servlet {
         Resources.appendSearch(0,cls);
         String work_dir=ArgsConfig.APP_WORKDIR.get(conf);
         if(work_dir!=null) Resources.appendSearch(0,work_dir);
+        Resources.setCacheTTL(Config.RESOURCE_CACHE_TTL.get(conf));
+        if(Config.FILE_WATCH.get(conf) && FileWatcher.getShared()==null) FileWatcher.startShared().addListener(Template::invalidate);
+        ChunkWriter.setChunkSize(Config.RENDER_CHUNK_SIZE.get(conf));
+        if(Config.TEMPLATE_PRECOMPILE.get(conf)) precompileTemplates();
         // install app session middleware
         app.addAppSession();
         // set security policy
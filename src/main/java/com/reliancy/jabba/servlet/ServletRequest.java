@@ -7,10 +7,17 @@ You may not use this file except in compliance with the License.
 */
 package com.reliancy.jabba.servlet;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
 import com.reliancy.jabba.Request;
+import com.reliancy.jabba.RequestBody;
 import com.reliancy.util.Handy;
 
 import jakarta.servlet.AsyncContext;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletRequest;
 
@@ -19,13 +26,23 @@ import jakarta.servlet.http.HttpServletRequest;
  * Wraps HttpServletRequest to provide request functionality.
  */
 public class ServletRequest extends Request {
-    protected final HttpServletRequest http_request;
+    protected HttpServletRequest http_request;
     protected AsyncContext asyncContext;
 
     public ServletRequest(HttpServletRequest http_request) {
         super();
         this.http_request = http_request;
     }
+    /** points a recycled request at the next servlet request. */
+    void bind(HttpServletRequest http_request){
+        this.http_request = http_request;
+    }
+    @Override
+    protected void reset(){
+        super.reset();
+        http_request = null;
+        asyncContext = null;
+    }
 
     @Override
     public void finish() {
@@ -72,15 +89,12 @@ public class ServletRequest extends Request {
     
     @Override
     public Object getParam(String pname, Object def){
-        if(pathParams.containsKey(pname)) {
-            Object val = pathParams.get(pname);
-            return val;
-        }
-        String[] vals=http_request.getParameterValues(pname);
-        if(vals!=null) {
-            Object result = vals.length==1?vals[0]:vals;
-            return result;
+        if(route!=null){
+            String val = route.getParam(pname);
+            if(val!=null) return val;
         }
+        Object val=getQueryParam(pname);
+        if(val!=null) return val;
         String hdr=getHeader(pname);
         if(hdr!=null) return hdr;
         String cook=getCookie(pname,null);
@@ -88,11 +102,16 @@ public class ServletRequest extends Request {
         return def;
     }
     
+    @Override
+    public Object getQueryParam(String pname){
+        String[] vals=http_request.getParameterValues(pname);
+        if(vals==null) return null;
+        return vals.length==1?vals[0]:vals;
+    }
+
     @Override
     public Request setParam(String pname, Object val){
-        if(pathParams.containsKey(pname)){
-            pathParams.put(pname,String.valueOf(Handy.nz(val,"")));
-        }else{
+        if(route==null || !route.setParam(pname,String.valueOf(Handy.nz(val,"")))){
             throw new IllegalArgumentException("invalid param name:"+pname);
         }
         return this;
@@ -135,6 +154,55 @@ public class ServletRequest extends Request {
         return http_request.getRemoteAddr();
     }
     
+    @Override
+    public long getContentLength(){
+        return http_request.getContentLengthLong();
+    }
+    
+    @Override
+    public Reader getBodyReader() throws IOException{
+        return http_request.getReader();
+    }
+    
+    @Override
+    public InputStream getBodyStream() throws IOException{
+        return http_request.getInputStream();
+    }
+    
+    /** goes async and reads the body only as data arrives, falls back to blocking reads if async is not possible. */
+    @Override
+    public RequestBody getBody(long maxSize) throws IOException{
+        if(isAsync() || goAsync()) return new AsyncBody(http_request.getInputStream(), maxSize);
+        return super.getBody(maxSize);
+    }
+    
+    /** Body fed by a ReadListener, the container calls back when data is there after isReady() said no. */
+    protected static final class AsyncBody extends RequestBody implements ReadListener {
+        AsyncBody(ServletInputStream in, long maxSize){
+            super(in, maxSize);
+        }
+        @Override
+        protected void start() throws IOException{
+            ((ServletInputStream)in).setReadListener(this);
+        }
+        @Override
+        protected boolean isReady(){
+            return ((ServletInputStream)in).isReady();
+        }
+        @Override
+        public void onDataAvailable(){
+            signal();
+        }
+        @Override
+        public void onAllDataRead(){
+            signal();
+        }
+        @Override
+        public void onError(Throwable t){
+            fail(t);
+        }
+    }
+    
     @Override
     public String getMount(){
         String scheme = http_request.getScheme();
@@ -7,15 +7,27 @@ You may not use this file except in compliance with the License.
 */
 package com.reliancy.jabba.servlet;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.reliancy.jabba.HTTP;
 import com.reliancy.jabba.Request;
 import com.reliancy.jabba.Response;
 import com.reliancy.jabba.ResponseState;
 
+import org.eclipse.jetty.ee10.servlet.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
 import jakarta.servlet.http.Cookie;
 import jakarta.servlet.http.HttpServletResponse;
 
@@ -24,12 +36,26 @@ import jakarta.servlet.http.HttpServletResponse;
  * Wraps HttpServletResponse to provide response functionality.
  */
 public class ServletResponse extends Response {
-    protected final HttpServletResponse http_response;
+    protected HttpServletResponse http_response;
+    protected AsyncOutput asyncOut;
+    AtomicReference<ServletResponse> home;    // spare slot of the thread that acquired us, see ExchangePool
+    /** slices smaller than this are read onto the heap, mapping them costs more than it saves. */
+    public static final int MAP_MIN=64*1024;
 
     public ServletResponse(Request request, HttpServletResponse http_response) {
         super(request);
         this.http_response = http_response;
     }
+    /** points a recycled response at the next servlet response. */
+    void bind(HttpServletResponse http_response){
+        this.http_response = http_response;
+    }
+    @Override
+    protected void reset(){
+        super.reset();
+        http_response = null;
+        asyncOut = null;
+    }
     @Override
     public OutputStream getOutputStream() throws IOException{
         if(http_response!=null) return http_response.getOutputStream();
@@ -153,8 +179,9 @@ public class ServletResponse extends Response {
     @Override
     public void complete() {
         try {
-            if(encoder!=null) encoder.flush();
-            if(http_response!=null) http_response.flushBuffer();
+            // in non-blocking mode all is written once drain completed, async complete does the rest
+            if(encoder!=null && asyncOut==null) encoder.flush();
+            if(http_response!=null && asyncOut==null) http_response.flushBuffer();
         } catch (IOException e) {
             throw new RuntimeException("Failed to complete response", e);
         }
@@ -162,6 +189,118 @@ public class ServletResponse extends Response {
         request.finish();
     }
     
+    /**
+     * Hands the file slice to Jetty as one buffer, memory mapped unless small, so the bytes never pass
+     * through our streams. Without blocking if the request is already async. Falls back to the copy
+     * when not on Jetty output, after non-blocking writes or for slices over 2GB.
+     */
+    @Override
+    public void sendFile(Path file,long offset,long length) throws IOException{
+        ServletOutputStream out=http_response!=null?http_response.getOutputStream():null;
+        if(asyncOut!=null || !(out instanceof HttpOutput) || length>Integer.MAX_VALUE){
+            super.sendFile(file,offset,length);
+            return;
+        }
+        final HttpOutput hout=(HttpOutput)out;
+        final ByteBuffer content;
+        try(FileChannel ch=FileChannel.open(file,StandardOpenOption.READ)){
+            if(length<MAP_MIN){
+                content=ByteBuffer.allocate((int)length);
+                while(content.hasRemaining() && ch.read(content,offset+content.position())>=0);
+                if(content.hasRemaining()) throw new EOFException("file shrank below the declared length:"+file);
+                content.flip();
+            }else{
+                if(ch.size()<offset+length) throw new EOFException("file shrank below the declared length:"+file);
+                content=ch.map(FileChannel.MapMode.READ_ONLY,offset,length); // stays valid after close
+            }
+        }
+        commit();
+        if(request.isAsync()){
+            promiseAwait(()->{
+                transitionTo(ResponseState.WRITING);
+                CompletableFuture<Void> done=new CompletableFuture<>();
+                hout.sendContent(content,Callback.from(()->done.complete(null),done::completeExceptionally));
+                return done.whenComplete((v,err)->{
+                    if(state == ResponseState.WRITING) transitionTo(ResponseState.WRITTEN);
+                });
+            });
+            return;
+        }
+        transitionTo(ResponseState.WRITING);
+        try{
+            hout.sendContent(content);
+        }finally{
+            if(state == ResponseState.WRITING) transitionTo(ResponseState.WRITTEN);
+        }
+    }
+    /** Drains without blocking once the request is async, see AsyncOutput. */
+    @Override
+    public CompletableFuture<Void> drain(ByteSource src){
+        if(http_response==null || !request.isAsync()) return super.drain(src);
+        try{
+            if(asyncOut==null) asyncOut=new AsyncOutput(http_response.getOutputStream());
+            return asyncOut.start(src);
+        }catch(IOException|RuntimeException e){
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    /**
+     * Writes from a source only while the servlet output is ready, the container calls back when it is ready again.
+     * A listener can be set once per response so one instance serves all drains, which come one after another.
+     */
+    protected static final class AsyncOutput implements WriteListener {
+        final ServletOutputStream out;
+        final byte[] buf=new byte[2*4096];
+        // set by the request thread, read and cleared by container callbacks
+        volatile boolean listening;
+        volatile ByteSource src;
+        volatile CompletableFuture<Void> done;
+
+        AsyncOutput(ServletOutputStream out){
+            this.out=out;
+        }
+        CompletableFuture<Void> start(ByteSource s) throws IOException{
+            CompletableFuture<Void> f=new CompletableFuture<>();
+            src=s;
+            done=f;
+            if(!listening){
+                listening=true;
+                out.setWriteListener(this); // container calls onWritePossible
+            }else if(out.isReady()){
+                onWritePossible();          // not ready means the container calls back
+            }
+            return f;
+        }
+        @Override
+        public void onWritePossible() throws IOException{
+            ByteSource s=src;
+            if(s==null) return;
+            try{
+                while(out.isReady()){
+                    int n=s.read(buf);
+                    if(n<0){
+                        finish(null);
+                        return;
+                    }
+                    if(n>0) out.write(buf,0,n);
+                }
+            }catch(IOException|RuntimeException e){
+                finish(e);
+            }
+        }
+        @Override
+        public void onError(Throwable t){
+            finish(t);
+        }
+        void finish(Throwable t){
+            CompletableFuture<Void> f=done;
+            src=null;
+            done=null;
+            if(f==null) return;
+            if(t==null) f.complete(null); else f.completeExceptionally(t);
+        }
+    }
+
     /**
      * Get the underlying HttpServletResponse.
      * @return the HttpServletResponse
@@ -22,6 +22,11 @@ public class Feedback extends LinkedList<FeedbackLine>{
         AppSession ass=AppSession.getInstance();
         return ass!=null?ass.getFeedback():null;
     }
+    /** feedback of the current session if there is one, does not make a session. */
+    public static Feedback current(){
+        AppSession ass=AppSession.peekInstance();
+        return ass!=null?ass.getFeedback():null;
+    }
     class Siphon implements Iterator<FeedbackLine>{
         final ListIterator<FeedbackLine> backend;
         public Siphon(ListIterator<FeedbackLine> it){
@@ -8,6 +8,7 @@ You may not use this file except in compliance with the License.
 package com.reliancy.jabba.ui;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -19,13 +20,14 @@ import com.reliancy.util.CodeException;
  * Data context and render task for our handlebars UI system.
  * We create a rendering for a template, load it with data and then flush it at end into a document.
  * In this class we also inject some global variables such as menu, feedback and user.
+ * end(Response) streams into the response a chunk at a time, end() builds the whole page as a string.
  */
 public class Rendering extends HashMap<String,Object>{
     public static Rendering begin(Template t){
         Rendering ret=new Rendering(t);
         ret.with("menu",Menu.request(Menu.TOP));
         ret.with("toolbar",Menu.request(Menu.LEFT));
-        ret.with("feedback",Feedback.get());
+        ret.with("feedback",Feedback.current());
         ret.with("layout","land-app");
         return ret;
     }
@@ -50,8 +52,13 @@ public class Rendering extends HashMap<String,Object>{
         }   
     }
     public void end(Response resp) throws IOException{
+        try(Writer out=resp.getEncoder().openChunkWriter()){
+            end(out);
+        }
+    }
+    public void end(Writer out) throws IOException{
         try{
-            template.render(ctx,resp.getEncoder().getWriter());
+            template.render(ctx,out);
         }finally{
             ctx.destroy();
         }   
@@ -10,9 +10,18 @@ package com.reliancy.jabba.ui;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.Writer;
+import java.net.JarURLConnection;
 import java.net.URL;
-import java.util.HashMap;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.stream.Stream;
 import java.util.logging.Logger;
 
 import com.github.jknack.handlebars.Handlebars;
@@ -31,6 +40,8 @@ import com.hubspot.jinjava.loader.ResourceLocator;
 
 /**
  * We will manage template rendering thru this class.
+ * Templates are kept by path in a concurrent registry and compiled once, concurrent first
+ * renders wait for the same recipe. precompile walks /templates/ so the first request is warm.
  */
 public class Template {
     /*
@@ -79,9 +90,9 @@ public class Template {
         }
     }
     static Handlebars handlebars;
-    static HashMap<String,String> partial_map=new HashMap<>();
+    static ConcurrentHashMap<String,String> partial_map=new ConcurrentHashMap<>();
     static Object[] search_path;
-    static HashMap<String,Template> cache=new HashMap<>();
+    static ConcurrentHashMap<String,Template> cache=new ConcurrentHashMap<>();
     static{
         handlebars= new Handlebars(new HBLoader());
         StringHelpers.register(handlebars);
@@ -115,10 +126,75 @@ public class Template {
         if(ret!=null) return ret;
         URL loc=Resources.findFirst(null, path, (sp!=null && sp.length>0?sp:search_path()));
         if(loc==null) return null;
-        ret=new Template(loc);
-        cache.put(path,ret);
+        Template made=new Template(loc);
+        ret=cache.putIfAbsent(path,made);
+        return ret!=null?ret:made;  // not a second get, an invalidate may have dropped it already
+    }
+    /** loads and compiles every template found under /templates/ over the search path.
+     * returns compile nanos per template path, failures are logged and left out.
+     */
+    public static Map<String,Long> precompile(Object ... sp) throws IOException{
+        if(sp==null || sp.length==0) sp=search_path();
+        LinkedHashMap<String,Long> ret=new LinkedHashMap<>();
+        if(sp==null) return ret;
+        String prefix=handlebars.getLoader().getPrefix();
+        String suffix=handlebars.getLoader().getSuffix();
+        for(Object base:sp){
+            URL root=Resources.findFirst(null,prefix,base);
+            for(String name:listTemplates(root,suffix)){
+                String path=prefix+name;
+                if(ret.containsKey(path)) continue; // earlier base wins, as in find
+                Template t=find(path,sp);
+                if(t==null) continue;
+                try{
+                    t.compile();
+                    ret.put(path,t.getCompileNanos());
+                }catch(IOException|RuntimeException e){
+                    Logger.getLogger(Template.class.getSimpleName()).warning("Template failed:"+path+" "+e.getMessage());
+                }
+            }
+        }
         return ret;
     }
+    /** names (relative to root) of files ending with suffix under a file or jar folder url. */
+    static Iterable<String> listTemplates(URL root,String suffix) throws IOException{
+        ArrayList<String> ret=new ArrayList<>();
+        if(root==null) return ret;
+        Path dir=Resources.toPath(root);
+        if(dir!=null){
+            if(!Files.isDirectory(dir)) return ret;
+            try(Stream<Path> files=Files.walk(dir)){
+                files.filter(f->f.toString().endsWith(suffix) && Files.isRegularFile(f))
+                    .forEach(f->ret.add(dir.relativize(f).toString().replace('\\','/')));
+            }
+            return ret;
+        }
+        URLConnection conn=root.openConnection();
+        if(conn instanceof JarURLConnection){
+            JarURLConnection jconn=(JarURLConnection)conn;
+            String folder=jconn.getEntryName();
+            if(folder==null) return ret;
+            if(!folder.endsWith("/")) folder+="/";
+            for(Enumeration<JarEntry> en=jconn.getJarFile().entries();en.hasMoreElements();){
+                String name=en.nextElement().getName();
+                if(name.startsWith(folder) && name.endsWith(suffix)) ret.add(name.substring(folder.length()));
+            }
+        }
+        return ret;
+    }
+    /** drops cached templates loaded from file.
+     * a template file not in the cache may be a partial others pulled in, then all go.
+     * null file means anything changed.
+     */
+    public static void invalidate(Path file){
+        if(file==null){
+            cache.clear();
+            return;
+        }
+        Path target=file.toAbsolutePath().normalize();
+        boolean hit=cache.values().removeIf(t->target.equals(Resources.toPath(t.location)));
+        if(!hit && target.toString().endsWith(handlebars.getLoader().getSuffix())) cache.clear();
+    }
     public static Object[] search_path(Object...sp){
         if(sp!=null && sp.length>0) search_path=sp;
         return search_path!=null?search_path:Resources.search_path;
@@ -134,9 +210,10 @@ public class Template {
         Template.partial_map.put(src,dst);
     }
     public static final int ERR_BADTEMPLATE=ResultCode.defineFailure(0x01,Template.class,"bad template: ${template}");
-    com.github.jknack.handlebars.Template recipe;
+    volatile com.github.jknack.handlebars.Template recipe;
     final URL location;
-    String source;
+    volatile String source;
+    long compileNanos;
     public Template(URL location){
         this.location=location;
     }
@@ -154,20 +231,34 @@ public class Template {
         if(source==null) this.source=Resources.toString(location);
         return this;
     }
+    /** compiles once, concurrent first callers get the same recipe. */
+    public com.github.jknack.handlebars.Template compile() throws IOException{
+        com.github.jknack.handlebars.Template ret=recipe;
+        if(ret!=null) return ret;
+        synchronized(this){
+            if(recipe==null){
+                load();
+                long t0=System.nanoTime();
+                com.github.jknack.handlebars.Template r=handlebars.compileInline(source);
+                compileNanos=System.nanoTime()-t0;
+                recipe=r;
+            }
+            return recipe;
+        }
+    }
+    public boolean isCompiled(){
+        return recipe!=null;
+    }
+    /** time the compile took, 0 if not compiled yet. */
+    public long getCompileNanos(){
+        return recipe!=null?compileNanos:0;
+    }
     public CharSequence render(Object context) throws IOException{
-        if(source==null) load();
         //String ret = jinjava.render(source, context);
-        if(recipe==null){
-            recipe=handlebars.compileInline(source);
-        }
-        return recipe.apply(context);
+        return compile().apply(context);
     }
     public void render(Object context,Writer _out) throws IOException{
-        if(source==null) load();
         //String ret = jinjava.render(source, context);
-        if(recipe==null){
-            recipe=handlebars.compileInline(source);
-        }
-        recipe.apply(context,_out);
+        compile().apply(context,_out);
     }
 }
@@ -8,6 +8,7 @@ You may not use this file except in compliance with the License.
 package com.reliancy.rec;
 
 import java.io.IOException;
+import java.io.Reader;
 
 /**
  * Static methods related to JSON format.
@@ -21,6 +22,13 @@ public class JSON {
         dec.parse(0, seq);
         return dec.endDocument();
     }
+    /** decodes from reader incrementally, reader is not closed. */
+    public static final Rec reads(Reader in) throws IOException{
+        JSONDecoder dec=new JSONDecoder();
+        dec.beginDocument();
+        dec.parse(in);
+        return dec.endDocument();
+    }
     public static final void writes(Rec rec,Appendable sink) throws IOException{
         JSONEncoder.encode(rec, sink);
     }
@@ -8,6 +8,8 @@ You may not use this file except in compliance with the License.
 
 package com.reliancy.rec;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.util.LinkedList;
 
 import com.reliancy.util.Tokenizer;
@@ -43,53 +45,97 @@ public class JSONDecoder implements TextDecoder,DecoderSink {
 			if(out.length()==0) continue;
 			String token=out.toString();
 			out.setLength(0);
-			if("{".equals(token)){
-				if(lastToken!=null){
-					if(lastToken.startsWith("/*") || lastToken.startsWith("//")){
-					handler.setValue(lastToken); // support comments in our stream
-					}else{
-					handler.setKey(lastToken); // we consider string before { a key or name unless comment
-					}
-					lastToken=null;
-				}
-				handler.beginElement("object");
-			}else if("}".equals(token)){
-				if(lastToken!=null){
-					handler.setValue(lastToken);
-					lastToken=null;
-				}
-				handler.endElement("object");
-			}else if("[".equals(token)){
-				if(lastToken!=null){
-					handler.setValue(lastToken);
-					lastToken=null;
-				}
-				handler.beginElement("array");
-			}else if("]".equals(token)){
-				if(lastToken!=null){
-					handler.setValue(lastToken);
-					lastToken=null;
-				}
-				handler.endElement("array");
-			}else if(",".equals(token) || ";".equals(token)){
-				if(lastToken!=null){
-					handler.setValue(lastToken);
-					lastToken=null;
-				}
-			}else if(":".equals(token) || "=".equals(token)){
-				if(lastToken!=null){
-					handler.setKey(lastToken);
-					lastToken=null;
-				}
+			handleToken(token);
+		}
+		if(lastToken!=null){
+			handler.setValue(lastToken);
+			lastToken=null;
+		}
+		return offset;
+	}
+	/** Parses text pulled from a reader chunk by chunk, the whole text is never held in memory.
+	 * A token reaching the end of what was read so far might be cut, so it is kept back
+	 * and tokenized again once more input arrived.
+	 * @param in source of text, not closed here
+	 * @return number of chars read
+	 */
+	public long parse(Reader in) throws IOException{
+		StringBuilder window=new StringBuilder();
+		char[] chunk=new char[8192];
+		long total=0;
+		boolean eof=false;
+		while(!eof){
+			int n=in.read(chunk);
+			if(n<0){
+				eof=true;
 			}else{
-				lastToken=token;
+				total+=n;
+				window.append(chunk,0,n);
 			}
+			int offset=0;
+			int noffset=0;
+			while((noffset = Tokenizer.nextToken(offset, window, out, sets))!=offset){
+				if(noffset>=window.length() && !eof){
+					out.setLength(0); // maybe cut, retry with more input
+					break;
+				}
+				offset=noffset;
+				if(out.length()==0) continue;
+				String token=out.toString();
+				out.setLength(0);
+				handleToken(token);
+			}
+			window.delete(0,offset);
 		}
 		if(lastToken!=null){
 			handler.setValue(lastToken);
 			lastToken=null;
 		}
-		return offset;
+		return total;
+	}
+	/** feeds one token to the handler, lastToken carries a value or key until a delimiter says which. */
+	protected void handleToken(String token){
+		if("{".equals(token)){
+			if(lastToken!=null){
+				if(lastToken.startsWith("/*") || lastToken.startsWith("//")){
+				handler.setValue(lastToken); // support comments in our stream
+				}else{
+				handler.setKey(lastToken); // we consider string before { a key or name unless comment
+				}
+				lastToken=null;
+			}
+			handler.beginElement("object");
+		}else if("}".equals(token)){
+			if(lastToken!=null){
+				handler.setValue(lastToken);
+				lastToken=null;
+			}
+			handler.endElement("object");
+		}else if("[".equals(token)){
+			if(lastToken!=null){
+				handler.setValue(lastToken);
+				lastToken=null;
+			}
+			handler.beginElement("array");
+		}else if("]".equals(token)){
+			if(lastToken!=null){
+				handler.setValue(lastToken);
+				lastToken=null;
+			}
+			handler.endElement("array");
+		}else if(",".equals(token) || ";".equals(token)){
+			if(lastToken!=null){
+				handler.setValue(lastToken);
+				lastToken=null;
+			}
+		}else if(":".equals(token) || "=".equals(token)){
+			if(lastToken!=null){
+				handler.setKey(lastToken);
+				lastToken=null;
+			}
+		}else{
+			lastToken=token;
+		}
 	}
 	
 	Slot KEY=new Slot("__key",String.class);
@@ -0,0 +1,121 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.util;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/** Bounded cache safe for concurrent use.
+ * Unlike LRUCache reads do not reorder anything, a hit only marks the entry as used.
+ * When an insert finds the cache full a clock style sweep evicts entries not used since
+ * the last sweep and clears the mark on the others (second chance).
+ * Hits, misses and evictions are counted so callers can report a hit ratio.
+ * Capacity of 0 or less disables caching, get always misses and put does nothing.
+*/
+public class ClockCache<K,V>{
+    static final class Entry<V>{
+        final V value;
+        volatile boolean used;
+        Entry(V v){value=v;}
+    }
+    final ConcurrentHashMap<K,Entry<V>> data=new ConcurrentHashMap<>();
+    volatile int capacity;
+    final LongAdder hits=new LongAdder();
+    final LongAdder misses=new LongAdder();
+    final LongAdder evictions=new LongAdder();
+
+    public ClockCache(int capacity){
+        this.capacity=capacity;
+    }
+    public int getCapacity(){
+        return capacity;
+    }
+    public ClockCache<K,V> setCapacity(int c){
+        capacity=c;
+        if(c<=0) data.clear(); else if(data.size()>c) sweep();
+        return this;
+    }
+    public int size(){
+        return data.size();
+    }
+    public V get(K key){
+        Entry<V> e=capacity>0?data.get(key):null;
+        if(e==null){
+            misses.increment();
+            return null;
+        }
+        if(!e.used) e.used=true;
+        hits.increment();
+        return e.value;
+    }
+    public void put(K key,V value){
+        if(capacity<=0) return;
+        if(value==null){
+            data.remove(key);
+            return;
+        }
+        if(data.size()>=capacity) sweep();
+        data.put(key,new Entry<>(value));
+    }
+    public V remove(K key){
+        Entry<V> e=data.remove(key);
+        return e!=null?e.value:null;
+    }
+    public void clear(){
+        data.clear();
+    }
+    /** removes entries matching test, returns how many went. */
+    public int removeIf(BiPredicate<? super K,? super V> test){
+        int count=0;
+        for(Iterator<Map.Entry<K,Entry<V>>> it=data.entrySet().iterator();it.hasNext();){
+            Map.Entry<K,Entry<V>> e=it.next();
+            if(test.test(e.getKey(),e.getValue().value)){
+                it.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+    /** evicts unused entries until below capacity, two passes at most. */
+    protected synchronized void sweep(){
+        int cap=capacity;
+        for(int pass=0;pass<2 && data.size()>=cap;pass++){
+            Iterator<Map.Entry<K,Entry<V>>> it=data.entrySet().iterator();
+            while(it.hasNext() && data.size()>=cap){
+                Entry<V> e=it.next().getValue();
+                if(e.used){
+                    e.used=false;
+                }else{
+                    it.remove();
+                    evictions.increment();
+                }
+            }
+        }
+    }
+    public long getHits(){
+        return hits.sum();
+    }
+    public long getMisses(){
+        return misses.sum();
+    }
+    public long getEvictions(){
+        return evictions.sum();
+    }
+    /** hits over all lookups, 0 if nothing was looked up yet. */
+    public double getHitRatio(){
+        long h=hits.sum();
+        long all=h+misses.sum();
+        return all>0?(double)h/all:0.0;
+    }
+    @Override
+    public String toString(){
+        return String.format("size:%d/%d hits:%d misses:%d evictions:%d",size(),capacity,getHits(),getMisses(),getEvictions());
+    }
+}
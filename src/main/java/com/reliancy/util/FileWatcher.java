@@ -0,0 +1,156 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+
+package com.reliancy.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Watches directory trees and tells listeners which file changed.
+ * One daemon thread drains a WatchService, new sub directories are picked up as they appear.
+ * Listeners get the absolute path of the created, modified or deleted file, or null when
+ * events were lost (overflow) and anything may have changed.
+ * A shared instance is started once by the app, caches hook into it to drop stale entries.
+ */
+public class FileWatcher implements Closeable{
+    public static interface Listener{
+        void changed(Path file);
+    }
+    static volatile FileWatcher shared;
+    final WatchService service;
+    final ConcurrentHashMap<WatchKey,Path> keys=new ConcurrentHashMap<>();
+    final CopyOnWriteArrayList<Listener> listeners=new CopyOnWriteArrayList<>();
+    Thread thread;
+
+    public FileWatcher() throws IOException{
+        service=FileSystems.getDefault().newWatchService();
+    }
+    /** starts draining on the first register, not in the constructor where a subclass is not built yet. */
+    private synchronized void start(){
+        if(thread!=null) return;
+        thread=new Thread(this::run,"file-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    /** the shared watcher or null if none was started. */
+    public static FileWatcher getShared(){
+        return shared;
+    }
+    /** starts the shared watcher (once) over the directories in Resources.search_path.
+     * resource lookups are invalidated from it.
+     */
+    public static synchronized FileWatcher startShared() throws IOException{
+        if(shared!=null) return shared;
+        FileWatcher ret=new FileWatcher();
+        ret.addListener(Resources::invalidate);
+        ret.registerAll(Resources.search_path);
+        shared=ret;
+        return ret;
+    }
+    public static synchronized void stopShared() throws IOException{
+        FileWatcher w=shared;
+        shared=null;
+        if(w!=null) w.close();
+    }
+    public FileWatcher addListener(Listener l){
+        listeners.add(l);
+        return this;
+    }
+    public FileWatcher removeListener(Listener l){
+        listeners.remove(l);
+        return this;
+    }
+    /** registers directory bases (String, File or file: URL) from a search path, others are skipped. */
+    public FileWatcher registerAll(Object ... sp) throws IOException{
+        if(sp==null) return this;
+        for(Object base:sp){
+            Path dir=null;
+            if(base instanceof String) dir=Paths.get((String)base);
+            else if(base instanceof File) dir=((File)base).toPath();
+            else if(base instanceof URL) dir=Resources.toPath((URL)base);
+            if(dir!=null && Files.isDirectory(dir)) register(dir);
+        }
+        return this;
+    }
+    /** watches dir and everything under it, registering twice is harmless. */
+    public FileWatcher register(Path dir) throws IOException{
+        start();
+        Files.walkFileTree(dir.toAbsolutePath().normalize(),new SimpleFileVisitor<Path>(){
+            @Override
+            public FileVisitResult preVisitDirectory(Path d,BasicFileAttributes attrs) throws IOException{
+                if(keys.containsValue(d)) return FileVisitResult.CONTINUE;
+                WatchKey key=d.register(service,StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key,d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return this;
+    }
+    public boolean isWatching(Path dir){
+        return keys.containsValue(dir.toAbsolutePath().normalize());
+    }
+    private void run(){
+        try{
+            for(;;){
+                WatchKey key=service.take();
+                Path dir=keys.get(key);
+                for(WatchEvent<?> ev:key.pollEvents()){
+                    if(ev.kind()==StandardWatchEventKinds.OVERFLOW || dir==null){
+                        fire(null);
+                        continue;
+                    }
+                    Path file=dir.resolve((Path)ev.context());
+                    if(ev.kind()==StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)){
+                        try{
+                            register(file);
+                        }catch(IOException e){
+                            // went away again, nothing to watch
+                        }
+                    }
+                    fire(file);
+                }
+                if(!key.reset()) keys.remove(key);
+            }
+        }catch(InterruptedException|ClosedWatchServiceException e){
+            // closed, we are done
+        }
+    }
+    protected void fire(Path file){
+        for(Listener l:listeners){
+            try{
+                l.changed(file);
+            }catch(RuntimeException e){
+                Logger.getLogger(FileWatcher.class.getSimpleName()).log(Level.WARNING,"file watch listener failed on "+file,e);
+            }
+        }
+    }
+    @Override
+    public void close() throws IOException{
+        service.close();
+        keys.clear();
+    }
+}
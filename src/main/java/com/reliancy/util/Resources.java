@@ -21,19 +21,96 @@ import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Static utility with helper methods to read or write resources.
  * The place where we host a global search path often used by others 
  * such as Template or FileServe (unless overriden.)
+ * Lookups by findFirst are remembered (misses included) for cacheTTL millis so repeated
+ * requests skip the stats, jar and HEAD probes. Search path bases are compared by identity.
  */
 public class Resources {
     public static interface PathRewrite{
         public String rewritePath(String path,Object context);
     }
+    /** key of a remembered lookup. */
+    static final class Lookup{
+        final PathRewrite remap;
+        final String path;
+        final Object[] sp;
+        final int hash;
+        Lookup(PathRewrite remap,String path,Object[] sp){
+            this.remap=remap;
+            this.path=path;
+            this.sp=sp;
+            int h=31*System.identityHashCode(remap)+path.hashCode();
+            for(Object base:sp) h=31*h+System.identityHashCode(base);
+            hash=h;
+        }
+        @Override
+        public int hashCode(){return hash;}
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Lookup)) return false;
+            Lookup l=(Lookup)o;
+            if(l.hash!=hash || l.remap!=remap || l.sp.length!=sp.length || !l.path.equals(path)) return false;
+            for(int i=0;i<sp.length;i++) if(l.sp[i]!=sp[i]) return false;
+            return true;
+        }
+    }
+    /** outcome of a lookup, url null when nothing was found. */
+    static final class Resolved{
+        final URL url;
+        final long expires;
+        Resolved(URL url,long expires){this.url=url;this.expires=expires;}
+    }
+    static final ClockCache<Lookup,Resolved> resolved=new ClockCache<>(4096);
+    static volatile long cacheTTL=2000;
+    static final AtomicLong generation=new AtomicLong();   // bumped by every invalidation
     public static Object[] search_path;
+    /** how long a lookup is trusted, 0 or less disables remembering. */
+    public static void setCacheTTL(long millis){
+        cacheTTL=millis;
+        if(millis<=0) resolved.clear();
+    }
+    public static long getCacheTTL(){
+        return cacheTTL;
+    }
+    /** drops remembered lookups, call when files are added or removed. */
+    public static void invalidate(){
+        generation.incrementAndGet();
+        resolved.clear();
+    }
+    /** drops lookups that a change to file could affect: misses and hits on the file itself.
+     * null file means anything changed.
+     */
+    public static void invalidate(Path file){
+        generation.incrementAndGet();
+        if(file==null){
+            resolved.clear();
+            return;
+        }
+        Path target=file.toAbsolutePath().normalize();
+        resolved.removeIf((k,r)->r.url==null || target.equals(toPath(r.url)));
+    }
+    /** file behind a file: url, null for jar entries and other schemes. */
+    public static Path toPath(URL f){
+        if(f==null || !"file".equals(f.getProtocol())) return null;
+        try{
+            return Paths.get(f.toURI()).toAbsolutePath().normalize();
+        }catch(URISyntaxException|IllegalArgumentException e){
+            return null;
+        }
+    }
+    public static ClockCache<?,?> getLookupCache(){
+        return resolved;
+    }
     /** appends one+ paths to search at position pos. 
      * neg pos substracts from end 
      */
@@ -54,6 +131,7 @@ public class Resources {
         // lastly right side of old search path
         System.arraycopy(search_path,pos, new_path,pos+src.length, search_path.length-pos);
         search_path=new_path;
+        invalidate();
         return search_path;
     }
     /** returns first good URL for path over sp or search_path.
@@ -65,8 +143,23 @@ public class Resources {
      * @return URL that can be read.
      */
     public static URL findFirst(PathRewrite remap,String path,Object ... sp){
-        String path0=path;
         if(sp==null || sp.length==0) sp=search_path;
+        long ttl=cacheTTL;
+        if(ttl<=0 || sp==null || path==null) return locate(remap,path,sp);
+        Lookup key=new Lookup(remap,path,sp);
+        Resolved r=resolved.get(key);
+        long now=System.currentTimeMillis();
+        if(r!=null && r.expires>now) return r.url;
+        long gen=generation.get();
+        URL ret=locate(remap,path,sp);
+        resolved.put(key,new Resolved(ret,now+ttl));
+        if(generation.get()!=gen) resolved.remove(key); // invalidated while we looked, may be stale
+        return ret;
+    }
+    /** walks the search path, no caching. */
+    static URL locate(PathRewrite remap,String path,Object[] sp){
+        if(sp==null) return null;
+        String path0=path;
         for(Object base:sp){
             if(remap!=null) path=remap.rewritePath(path0,base);
             if(base instanceof Class){
@@ -83,6 +83,22 @@ public class AsyncTest {
             // Regular method with @Async annotation - should be detected as async
             return "Processed: " + input + " (" + value + ")";
         }
+        
+        @Routed(path="/asyncText")
+        @Async
+        public void asyncText(Request req, Response resp) throws java.io.IOException {
+            resp.setContentType("text/plain;charset=utf-8");
+            resp.getEncoder().writeReaderAsync(new java.io.StringReader(bigText()));
+        }
+        
+        @Routed(path="/asyncWhere")
+        @Async
+        public String asyncWhere() {
+            // reports thread kind and whether call session made it over
+            CallSession cs = CallSession.getInstance();
+            boolean bound = cs.getRequest() != null;
+            return (Thread.currentThread().isVirtual() ? "virtual" : "platform") + ":" + bound;
+        }
     }
     
     @Test
@@ -256,6 +272,88 @@ public class AsyncTest {
                     "Processed: test (42)", result);
     }
     
+    @Test
+    public void testSessionHandOff() throws Exception {
+        CallSession ss = new CallSession();
+        ss.beginFresh(null, null, null);
+        ss.setExecutor(Runnable::run);
+        assertSame(ss, CallSession.getInstance());
+        Processor outer = new Processor("outer"){};
+        ss.enter(outer);
+        assertSame(outer, ss.getCaller());
+        ss.retain(); // as a promise chain would
+        assertFalse("Chain hold keeps session", ss.end());
+        assertNotNull(ss.getExecutor());
+        CallSession[] seen = new CallSession[2];
+        boolean[] denied = new boolean[1];
+        Thread other = Thread.ofVirtual().start(() -> {
+            try{ ss.leave(outer); }catch(IllegalStateException e){ denied[0] = true; }
+        });
+        other.join();
+        assertTrue("Only owner writes the stack", denied[0]);
+        Thread t = Thread.ofVirtual().start(() -> {
+            CallSession prev = ss.attach();
+            ss.leave(outer);
+            seen[0] = CallSession.getInstance();
+            ss.detach(prev);
+            seen[1] = CallSession.instance.get();
+        });
+        t.join();
+        assertSame(ss, seen[0]);
+        assertEquals("Stage popped after hand off", 0, ss.getDepth());
+        assertSame(t, ss.getOwner());
+        assertNull("Stage thread is left clean", seen[1]);
+        assertTrue("Last hold cleans up", ss.release());
+        assertNull(ss.getExecutor());
+    }
+    
+    static String bigText() {
+        StringBuilder buf = new StringBuilder();
+        for(int i = 0; i < 40000; i++) buf.append("line ").append(i).append(" \u00e9\u20ac\ud83d\ude00\n");
+        return buf.toString();
+    }
+    
+    @Test
+    public void testNonBlockingWriteFromStage() throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/asyncText").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        String got;
+        try(java.io.InputStream in = conn.getInputStream()){
+            got = new String(in.readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+        }
+        assertEquals("Encoded text drained after the stage", bigText(), got);
+    }
+    
+    @Test
+    public void testVirtualThreadExecutor() throws Exception {
+        assertEquals("Default executor runs on platform threads", "platform:true", httpGet("/asyncWhere"));
+        int port;
+        try(java.net.ServerSocket probe = new java.net.ServerSocket(0)){
+            port = probe.getLocalPort();
+        }
+        TestApp vapp = new TestApp();
+        ArgsConfig config = new ArgsConfig();
+        Config.SERVER_PORT.set(config, port);
+        Config.ASYNC_EXECUTOR.set(config, "virtual");
+        Config.SERVER_VIRTUAL_THREADS.set(config, true);
+        config.load();
+        vapp.begin(config);
+        try {
+            for(int i = 0; i < 20 && !vapp.isStarted(); i++) Thread.sleep(100);
+            assertTrue("Virtual thread server should start", vapp.isStarted());
+            String saved = baseUrl;
+            baseUrl = "http://localhost:" + port;
+            try {
+                assertEquals("Async work runs on virtual threads with session", "virtual:true", httpGet("/asyncWhere"));
+                assertEquals("Processed: vt (7)", httpGet("/asyncAnnotation?input=vt&value=7"));
+            } finally {
+                baseUrl = saved;
+            }
+        } finally {
+            vapp.end();
+        }
+    }
+    
     @Test
     public void testAsyncNonBlocking() throws Exception {
         // Test that async endpoints don't block the server
@@ -68,7 +68,7 @@ public class DemoApp extends JettyApp implements AppModule{
         top_menu.add(new MenuItem("home")).addSpacer().add(new MenuItem("login"));
         top_menu.setTitle("Jabba3");
         app.getRouter().compile();
-        log().debug("Router regex:{}",app.getRouter().regex);
+        log().debug("Router regex fallbacks:{}",app.getRouter().getIndex().getFallbackCount());
     }
     @Override
     public void publish(App app) {
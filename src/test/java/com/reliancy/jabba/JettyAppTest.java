@@ -9,6 +9,8 @@ package com.reliancy.jabba;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
@@ -18,7 +20,9 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 import com.reliancy.jabba.decor.Routed;
+import com.reliancy.jabba.servlet.ExchangePool;
 import com.reliancy.jabba.servlet.JettyApp;
+import com.reliancy.rec.Obj;
 
 /**
  * Integration tests for JettyApp regular (non-async) functionality.
@@ -68,6 +72,45 @@ public class JettyAppTest {
         public String testNoArg() {
             return "no arg response";
         }
+        
+        @Routed(path="/testSessionWrite")
+        public String testSessionWrite(Request req) {
+            CallSession.of(req).setValue("seen", Boolean.TRUE);
+            return "stored";
+        }
+        
+        @Routed(path="/testRendering")
+        public com.reliancy.jabba.ui.Rendering testRendering(Request req) {
+            java.util.ArrayList<Integer> rows = new java.util.ArrayList<>();
+            for(int i = 0; i < 5000; i++) rows.add(i);
+            com.reliancy.jabba.ui.Template t = new com.reliancy.jabba.ui.Template("{{#each rows}}<p>{{this}}</p>{{/each}}");
+            return new com.reliancy.jabba.ui.Rendering(t).with("rows", rows);
+        }
+        
+        @Routed(path="/testBig")
+        public void testBig(Request req, Response resp) throws java.io.IOException {
+            resp.setContentType("application/octet-stream");
+            resp.getEncoder().writeStreamAsync(new java.io.ByteArrayInputStream(bigPayload()));
+        }
+        
+        @Routed(path="/testUpload",verb="POST")
+        public java.util.concurrent.CompletableFuture<String> testUpload(Request req) throws java.io.IOException {
+            return req.getBody(4 * 1024 * 1024).toBuffer().thenApply(buf -> {
+                long sum = 0;
+                while(buf.hasRemaining()) sum += buf.get() & 0xff;
+                return "upload: " + buf.limit() + " " + sum;
+            });
+        }
+        
+        @Routed(path="/testUploadSmall",verb="POST")
+        public java.util.concurrent.CompletableFuture<String> testUploadSmall(Request req) throws java.io.IOException {
+            return req.getBody(1000).toBuffer().handle((buf, err) -> err == null ? "upload: " + buf.limit() : "refused: " + err.getMessage());
+        }
+        
+        @Routed(path="/testJson",verb="POST")
+        public String testJson(Obj body) {
+            return "json: " + body.get(body.getSlot("name"),null);
+        }
     }
     
     private SimpleTestApp app;
@@ -76,8 +119,10 @@ public class JettyAppTest {
     
     @Before
     public void setUp() throws Exception {
-        // Use a random port to avoid conflicts
-        testPort = 18090 + (int)(Math.random() * 1000);
+        // Use a free port picked by the os to avoid conflicts
+        try(java.net.ServerSocket probe = new java.net.ServerSocket(0)){
+            testPort = probe.getLocalPort();
+        }
         baseUrl = "http://localhost:" + testPort;
         
         app = new SimpleTestApp();
@@ -176,6 +221,231 @@ public class JettyAppTest {
         assertEquals("Query parameter should work", "query: testvalue", result);
     }
     
+    @Test
+    public void testJsonBody() throws Exception {
+        URL url = new URL(baseUrl + "/testJson");
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        try(OutputStream out = conn.getOutputStream()){
+            out.write("{\"name\":\"posted\"}".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, conn.getResponseCode());
+        BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+        assertEquals("JSON body should bind", "json: posted", in.readLine());
+        in.close();
+    }
+    
+    @Test
+    public void testRecycledWrappers() throws Exception {
+        for(int i = 0; i < 20; i++){
+            assertEquals("Recycled pair serves fresh params", "param: " + i, httpGet("/testParam/" + i));
+            assertEquals("Recycled pair has no stale route", "query: q" + i, httpGet("/testQuery?name=q" + i));
+        }
+        ExchangePool pool = app.getExchangePool();
+        assertTrue("Pairs are reused: " + pool, pool.getReused() > 0);
+        assertTrue("Fewer pairs than requests: " + pool, pool.getCreated() < 40);
+    }
+    
+    static byte[] bigPayload() {
+        byte[] buf = new byte[3 * 1024 * 1024 + 17];
+        for(int i = 0; i < buf.length; i++) buf[i] = (byte)(i % 251);
+        return buf;
+    }
+    
+    @Test
+    public void testNonBlockingWrite() throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/testBig").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        byte[] got;
+        try(java.io.InputStream in = conn.getInputStream()){
+            got = in.readAllBytes();
+        }
+        assertArrayEquals("Drained body arrives whole", bigPayload(), got);
+    }
+    
+    private HttpURLConnection post(String path, byte[] body) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setChunkedStreamingMode(8192);
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        try(OutputStream out = conn.getOutputStream()){
+            for(int off = 0; off < body.length; off += 8192){
+                out.write(body, off, Math.min(8192, body.length - off));
+                out.flush();
+            }
+        }
+        return conn;
+    }
+    
+    @Test
+    public void testNonBlockingRead() throws Exception {
+        byte[] body = bigPayload();
+        long sum = 0;
+        for(byte b : body) sum += b & 0xff;
+        HttpURLConnection conn = post("/testUpload", body);
+        assertEquals(200, conn.getResponseCode());
+        BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+        assertEquals("Whole body read", "upload: " + body.length + " " + sum, in.readLine());
+        in.close();
+        conn = post("/testUploadSmall", new byte[5000]);
+        in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
+        assertEquals("Body over limit is refused", "refused: request body exceeds 1000 bytes", in.readLine());
+        in.close();
+    }
+    
+    @Test
+    public void testStaticFile() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("jabba");
+        try{
+            byte[] big = bigPayload();
+            java.nio.file.Files.write(dir.resolve("big.bin"), big);
+            java.nio.file.Files.write(dir.resolve("small.txt"), "small file".getBytes(StandardCharsets.UTF_8));
+            new FileServer("/files", "", dir.toString()).publish(app);
+            HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/files/big.bin").openConnection();
+            assertEquals(200, conn.getResponseCode());
+            assertEquals(String.valueOf(big.length), conn.getHeaderField("Content-Length"));
+            String etag = conn.getHeaderField("ETag");
+            try(java.io.InputStream in = conn.getInputStream()){
+                assertArrayEquals("Mapped file arrives whole", big, in.readAllBytes());
+            }
+            assertEquals("Small file read to heap", "small file", httpGet("/files/small.txt"));
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/big.bin").openConnection();
+            conn.setRequestProperty("If-None-Match", etag);
+            assertEquals("Unchanged file not resent", 304, conn.getResponseCode());
+            // partial content from the file channel, resumed download
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/big.bin").openConnection();
+            conn.setRequestProperty("Range", "bytes=1000-1999");
+            conn.setRequestProperty("If-Range", etag);
+            assertEquals(206, conn.getResponseCode());
+            assertEquals("bytes 1000-1999/" + big.length, conn.getHeaderField("Content-Range"));
+            assertEquals("1000", conn.getHeaderField("Content-Length"));
+            try(java.io.InputStream in = conn.getInputStream()){
+                assertArrayEquals(java.util.Arrays.copyOfRange(big, 1000, 2000), in.readAllBytes());
+            }
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/big.bin").openConnection();
+            conn.setRequestProperty("Range", "bytes=-10");
+            assertEquals(206, conn.getResponseCode());
+            try(java.io.InputStream in = conn.getInputStream()){
+                assertArrayEquals(java.util.Arrays.copyOfRange(big, big.length - 10, big.length), in.readAllBytes());
+            }
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/big.bin").openConnection();
+            conn.setRequestProperty("Range", "bytes=0-9");
+            conn.setRequestProperty("If-Range", "\"stale\"");
+            assertEquals("Changed entity is sent whole", 200, conn.getResponseCode());
+            conn.disconnect();
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/big.bin").openConnection();
+            conn.setRequestProperty("Range", "bytes=" + big.length + "-");
+            assertEquals(416, conn.getResponseCode());
+            assertEquals("bytes */" + big.length, conn.getHeaderField("Content-Range"));
+            // small file comes from the asset cache, same rules apply
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/small.txt").openConnection();
+            conn.setRequestProperty("Range", "bytes=6-");
+            assertEquals(206, conn.getResponseCode());
+            try(java.io.InputStream in = conn.getInputStream()){
+                assertEquals("file", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/small.txt").openConnection();
+            String modified = conn.getHeaderField("Last-Modified");
+            assertNotNull(modified);
+            conn = (HttpURLConnection) new URL(baseUrl + "/files/small.txt").openConnection();
+            conn.setRequestProperty("If-Modified-Since", modified);
+            assertEquals(304, conn.getResponseCode());
+        }finally{
+            for(String f : new String[]{"big.bin", "small.txt"}) java.nio.file.Files.deleteIfExists(dir.resolve(f));
+            java.nio.file.Files.deleteIfExists(dir);
+        }
+    }
+    
+    @Test
+    public void testAssetCache() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("jabba");
+        java.nio.file.Path css = dir.resolve("site.css");
+        try{
+            StringBuilder buf = new StringBuilder();
+            for(int i = 0; i < 200; i++) buf.append(".c").append(i).append("{color:red} ");
+            String text = buf.toString();
+            java.nio.file.Files.write(css, text.getBytes(StandardCharsets.UTF_8));
+            FileServer fs = new FileServer("/assets", "", dir.toString());
+            fs.publish(app);
+            AssetCache cache = fs.getAssetCache().setCheckInterval(0);
+            assertEquals(text, httpGet("/assets/site.css"));
+            assertEquals(text, httpGet("/assets/site.css"));
+            assertEquals("Second read is a hit", 1, cache.getHits());
+            HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/assets/site.css").openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals(200, conn.getResponseCode());
+            assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+            assertEquals("Accept-Encoding", conn.getHeaderField("Vary"));
+            assertTrue("Compressed variant is smaller", Integer.parseInt(conn.getHeaderField("Content-Length")) < text.length());
+            String gzTag = conn.getHeaderField("ETag");
+            try(java.io.InputStream in = new java.util.zip.GZIPInputStream(conn.getInputStream())){
+                assertEquals(text, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            conn = (HttpURLConnection) new URL(baseUrl + "/assets/site.css").openConnection();
+            String plainTag = conn.getHeaderField("ETag");
+            assertNotEquals("Each encoding has its own etag", plainTag, gzTag);
+            conn = (HttpURLConnection) new URL(baseUrl + "/assets/site.css").openConnection();
+            conn.setRequestProperty("If-None-Match", gzTag);
+            assertEquals("Gzip tag does not validate the identity body", 200, conn.getResponseCode());
+            conn = (HttpURLConnection) new URL(baseUrl + "/assets/site.css").openConnection();
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            conn.setRequestProperty("If-None-Match", gzTag);
+            assertEquals(304, conn.getResponseCode());
+            // a changed file is noticed through its modification time
+            java.nio.file.Files.write(css, "p{}".getBytes(StandardCharsets.UTF_8));
+            java.nio.file.Files.setLastModifiedTime(css, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() + 5000));
+            assertEquals("p{}", httpGet("/assets/site.css"));
+            assertEquals(1, cache.getStale());
+            assertTrue(cache.getHitRatio() > 0.0);
+        }finally{
+            java.nio.file.Files.deleteIfExists(css);
+            java.nio.file.Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testStreamedRendering() throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/testRendering").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("Sent while rendering", "chunked", conn.getHeaderField("Transfer-Encoding"));
+        assertTrue(conn.getContentType().startsWith("text/html"));
+        String body;
+        try(java.io.InputStream in = conn.getInputStream()){
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 5000; i++) expected.append("<p>").append(i).append("</p>");
+        assertEquals(expected.toString(), body);
+        assertTrue("Chunk went back to the pool", ChunkWriter.getPooled() > 0);
+    }
+
+    @Test
+    public void testLazySession() throws Exception {
+        int live = AppSession.getRegistry().getLive();
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + "/test").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertNull("Anonymous call gets no session", conn.getHeaderField("Set-Cookie"));
+        conn = (HttpURLConnection) new URL(baseUrl + "/static/none.css").openConnection();
+        conn.getResponseCode();
+        assertNull("Assets get no session", conn.getHeaderField("Set-Cookie"));
+        assertEquals(live, AppSession.getRegistry().getLive());
+        conn = (HttpURLConnection) new URL(baseUrl + "/testSessionWrite").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        String cookie = conn.getHeaderField("Set-Cookie");
+        assertNotNull("Writing state makes a session", cookie);
+        assertTrue(cookie.startsWith(AppSessionFilter.KEY_NAME + "="));
+        assertEquals(live + 1, AppSession.getRegistry().getLive());
+        String ssid = cookie.substring(cookie.indexOf('=') + 1, cookie.indexOf(';'));
+        conn = (HttpURLConnection) new URL(baseUrl + "/test").openConnection();
+        conn.setRequestProperty("Cookie", AppSessionFilter.KEY_NAME + "=" + ssid);
+        assertEquals(200, conn.getResponseCode());
+        assertNotNull("Known session is kept alive", conn.getHeaderField("Set-Cookie"));
+        assertEquals(Boolean.TRUE, AppSession.getInstance(ssid).getValue("seen"));
+    }
+
     @Test
     public void testNoArgMethod() throws Exception {
         String result = httpGet("/testNoArg");
@@ -0,0 +1,70 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RequestBodyTest {
+    static RequestBody body(String text,long max){
+        return new RequestBody(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)),max);
+    }
+
+    @Test
+    public void chunksFollowDemand() throws Throwable
+    {
+        StringBuilder big=new StringBuilder();
+        for(int i=0;i<3*RequestBody.CHUNK_SIZE;i++) big.append((char)('a'+i%26));
+        ArrayList<ByteBuffer> got=new ArrayList<>();
+        Flow.Subscription[] sub=new Flow.Subscription[1];
+        boolean[] done=new boolean[1];
+        body(big.toString(),0).subscribe(new Flow.Subscriber<ByteBuffer>(){
+            public void onSubscribe(Flow.Subscription s){sub[0]=s;}
+            public void onNext(ByteBuffer b){got.add(b);}
+            public void onError(Throwable t){fail(t.toString());}
+            public void onComplete(){done[0]=true;}
+        });
+        assertEquals("nothing read before demand",0,got.size());
+        sub[0].request(1);
+        assertEquals("one chunk per request",1,got.size());
+        assertEquals(RequestBody.CHUNK_SIZE,got.get(0).remaining());
+        sub[0].request(10);
+        assertTrue(done[0]);
+        int len=0;
+        for(ByteBuffer b:got) len+=b.remaining();
+        assertEquals(big.length(),len);
+        // whole body with a limit
+        assertEquals(big.length(),body(big.toString(),big.length()).toBuffer().join().remaining());
+        try{
+            body(big.toString(),100).toBuffer().join();
+            fail("limit not enforced");
+        }catch(java.util.concurrent.CompletionException ex){
+            assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void startsBeforeSubscriberAsks() throws Throwable
+    {
+        boolean[] started=new boolean[1];
+        RequestBody rb=new RequestBody(new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8)),0){
+            @Override protected void start(){started[0]=true;}
+            @Override protected boolean isReady(){
+                assertTrue("read only once the container side is set up",started[0]);
+                return true;
+            }
+        };
+        assertEquals("demand in onSubscribe reads the body",5,rb.toBuffer().join().remaining());
+    }
+}
@@ -7,20 +7,88 @@ You may not use this file except in compliance with the License.
 */
 package com.reliancy.jabba;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.junit.Test;
 
+import com.reliancy.jabba.decor.Param;
 import com.reliancy.jabba.decor.Routed;
-import com.reliancy.jabba.servlet.JettyApp;
+import com.reliancy.rec.Obj;
+import com.reliancy.util.Handy;
 /**
  * Unit test for simple App.
  */
 public class RouterTest 
 {
+    public static class Routes{
+        @Routed(path="/hello3/{id}")
+        public String hello3(int id){return "hello"+id;}
+        @Routed(path="/hello3/{id}/items/{item}")
+        public String items(int id,String item){return id+":"+item;}
+        @Routed(path="/hello3/all")
+        public String all(){return "all";}
+        @Routed(path="/files/[a-z]+\\.txt",verb="GET")
+        public String text(){return "text";}
+        @Routed(verb="POST")
+        public String posted(){return "posted";}
+    }
+    public enum Mode{FAST,SLOW}
+    public static class Params{
+        @Routed(path="/calc/{id}",verb="GET")
+        public String calc(long id,boolean flag,Mode mode,Integer opt,@Param(value="User-Agent",from=Param.Source.HEADER) String agent){
+            return id+":"+flag+":"+mode+":"+opt+":"+agent;
+        }
+        @Routed(path="/save",verb="POST")
+        public String save(@Param(from=Param.Source.BODY) Item item){
+            return item.name.length()+":"+item.qty+":"+item.mode;
+        }
+        @Routed(path="/plain",verb="POST")
+        public String plain(Item item){
+            return item!=null?"bound":"none";
+        }
+        @Routed(path="/raw",verb="POST")
+        public String raw(Obj rec){
+            return rec!=null?String.valueOf(rec.count()):"none";
+        }
+    }
+    public static class Item{
+        String name;
+        long qty;
+        Mode mode;
+    }
+    /** request over plain maps, enough to drive endpoints without a container. */
+    static class TestRequest extends Request{
+        final HashMap<String,String> query=new HashMap<>();
+        final HashMap<String,String> headers=new HashMap<>();
+        String body;
+        @Override public void finish(){}
+        @Override public boolean isAsync(){return false;}
+        @Override public boolean goAsync(){return false;}
+        @Override public String getPath(){return pathOverride;}
+        @Override public String getVerb(){return "GET";}
+        @Override public Object getParam(String pname,Object def){return Handy.nz(getQueryParam(pname),def);}
+        @Override public Object getQueryParam(String pname){return query.get(pname);}
+        @Override public Request setParam(String pname,Object val){query.put(pname,String.valueOf(val));return this;}
+        @Override public String getHeader(String key){return headers.get(key);}
+        @Override public String getCookie(String name,String def){return def;}
+        @Override public String getRemoteAddress(){return "127.0.0.1";}
+        @Override public long getContentLength(){return body!=null?body.getBytes(java.nio.charset.StandardCharsets.UTF_8).length:-1;}
+        @Override public Reader getBodyReader(){return body!=null?new StringReader(body):null;}
+        @Override public java.io.InputStream getBodyStream(){return body!=null?new java.io.ByteArrayInputStream(body.getBytes(java.nio.charset.StandardCharsets.UTF_8)):null;}
+        @Override public String getMount(){return "http://localhost";}
+        @Override public String getProtocol(){return "HTTP/1.1";}
+        @Override public String getScheme(){return "http";}
+    }
     /**
      * Rigorous Test :-)
      */
@@ -39,20 +107,197 @@ public class RouterTest
     @Test
     public void initRouter()
     {
-        //assertTrue( true );
         System.out.println("Test router init...");
-        JettyApp r=new JettyApp();
         Router rep=new Router();
-        rep.importMethods(r);
+        rep.importMethods(new Routes());
         rep.compile();
-        //Matcher m=rep.match("GET","/helloPlain");
-        Matcher m=rep.match("GET","/hello3/45");
-        //Matcher m=rep.match("GET","/helloP");
-        if(m!=null){
-            HashMap<String,String> pms=new HashMap<>();
-            String rt=rep.evalMatcher(m,pms);
-            System.out.println(rt);
-            System.out.println(pms);
+        RouteMatch m=new RouteMatch();
+        assertTrue(rep.match("GET","/hello3/45",m));
+        assertEquals("/hello3/{id}",m.getDetector().getPath());
+        assertEquals("45",m.getParam("id"));
+        assertEquals("45",m.getParam("_arg0"));
+        assertTrue(rep.match("POST","/hello3/7/items/abc",m));
+        assertEquals("/hello3/{id}/items/{item}",m.getDetector().getPath());
+        assertEquals("abc",m.getParam("_arg1"));
+        assertEquals("7",m.getParam("ID"));
+        assertTrue(m.setParam("item","xyz"));
+        assertEquals("xyz",m.getParam(1));
+        assertEquals("/hello3/all",rep.match("GET","/hello3/all").getDetector().getPath());
+        assertNull(rep.match("PUT","/hello3/all"));
+        assertNull(rep.match("GET","/hello3"));
+        assertNull(rep.match("GET","/posted"));
+        assertEquals("/posted",rep.match("POST","/posted").getDetector().getPath());
+    }
+    @Test
+    public void wildcardAndFallback() throws IOException
+    {
+        Router rep=new Router();
+        rep.importMethods(new Routes());
+        FileServer fs=new FileServer("/files","/public");
+        rep.addRoute("GET","/files.*",fs);
+        rep.compile();
+        assertEquals(1,rep.getIndex().getFallbackCount());
+        // regex route wins over the wildcard, wildcard catches the rest
+        assertEquals("/files/[a-z]+\\.txt",rep.match("GET","/files/abc.txt").getDetector().getPath());
+        assertEquals(fs,rep.match("GET","/files/abc.css").getEndPoint());
+        assertEquals(fs,rep.match("GET","/files/a/b/c.css").getEndPoint());
+        assertNull(rep.match("GET","/other/abc.css"));
+        // regex routes report param offsets too
+        rep.addRoute("GET","/re/(x|y)/{name}",fs);
+        RouteMatch m=rep.match("GET","/re/x/abc");
+        assertEquals(2,rep.getIndex().getFallbackCount());
+        assertEquals("abc",m.getParam("name"));
+    }
+    @Test
+    public void exactRouteBeatsWildcard()
+    {
+        Router rep=new Router();
+        FileServer fs=new FileServer();
+        FileServer named=new FileServer();
+        rep.addRoute("GET","/a/*",fs);
+        rep.addRoute("GET","/{x}/b",named);
+        RouteMatch m=rep.match("GET","/a/b");
+        assertEquals("/{x}/b",m.getDetector().getPath());
+        assertEquals("a",m.getParam("x"));
+        assertEquals(fs,rep.match("GET","/a/c").getEndPoint());
+        assertEquals(named,rep.match("GET","/z/b").getEndPoint());
+        // with no exact route the wildcard still sees params captured on the way
+        rep.addRoute("GET","/{x}/c/*",named);
+        assertEquals("/a/*",rep.match("GET","/a/c/d").getDetector().getPath());
+        m=rep.match("GET","/z/c/d");
+        assertEquals("/{x}/c/*",m.getDetector().getPath());
+        assertEquals("z",m.getParam("x"));
+    }
+    @Test
+    public void routeCache()
+    {
+        Router rep=new Router();
+        rep.importMethods(new Routes());
+        RouteMatch m=new RouteMatch();
+        assertTrue(rep.match("GET","/hello3/all",m));
+        assertTrue(rep.match("GET","/hello3/all",m));
+        assertTrue(rep.match("POST","/hello3/all",m));
+        assertEquals(1,rep.getCache().getHits());
+        assertEquals(2,rep.getCache().getMisses());
+        // param routes resolve through the index every time
+        assertTrue(rep.match("GET","/hello3/45",m));
+        assertTrue(rep.match("GET","/hello3/45",m));
+        assertEquals("45",m.getParam("id"));
+        assertEquals(2,rep.getCache().size());
+        // new routes drop cached results
+        rep.addRoute("GET","/hello3/45",new FileServer());
+        assertEquals(0,rep.getCache().size());
+        assertTrue(rep.match("GET","/hello3/45",m));
+        assertEquals("/hello3/45",m.getDetector().getPath());
+        assertEquals(0,m.getParamCount());
+    }
+    @Test
+    public void hotReload() throws Exception
+    {
+        Router rep=new Router();
+        Routes target=new Routes();
+        rep.importMethods(target);
+        RouteIndex before=rep.getIndex();
+        FileServer fs=new FileServer("/files","/public");
+        rep.addRoute("GET","/files.*",fs);
+        assertTrue(before!=rep.getIndex());
+        assertEquals(fs,rep.match("GET","/files/a.css").getEndPoint());
+        // concurrent readers keep resolving while routes come and go
+        final boolean[] failed={false};
+        Thread[] readers=new Thread[4];
+        for(int i=0;i<readers.length;i++){
+            readers[i]=new Thread(()->{
+                RouteMatch rm=new RouteMatch();
+                for(int k=0;k<20000;k++){
+                    if(!rep.match("GET","/hello3/"+(k%50),rm) || !"/hello3/{id}".equals(rm.getDetector().getPath())) failed[0]=true;
+                }
+            });
+            readers[i].start();
+        }
+        for(int k=0;k<50;k++){
+            rep.removeRoutes(fs);
+            rep.addRoute("GET","/files.*",fs);
+        }
+        for(Thread t:readers) t.join();
+        assertTrue(!failed[0]);
+        assertEquals(1,rep.removeRoutes(fs));
+        assertNull(rep.match("GET","/files/a.css"));
+        assertEquals(5,rep.removeRoutes(target));
+        assertNull(rep.match("GET","/hello3/1"));
+    }
+    @Test
+    public void paramDecoders() throws Throwable
+    {
+        Router rep=new Router();
+        rep.importMethods(new Params());
+        TestRequest req=new TestRequest();
+        assertTrue(rep.match("GET","/calc/7",req.getRouteMatch()));
+        @SuppressWarnings("deprecation")
+        Map<String,String> legacy=req.getPathParams();
+        assertEquals("7",legacy.get("id"));
+        MethodEndPoint ep=(MethodEndPoint)req.getRouteMatch().getEndPoint();
+        ParamDecoder[] decs=ep.getDecoders();
+        assertEquals(Param.Source.PATH,decs[0].getSource());
+        assertEquals(Param.Source.ANY,decs[1].getSource());
+        assertEquals(Param.Source.HEADER,decs[4].getSource());
+        req.query.put("flag","true");
+        req.query.put("mode","slow");
+        req.headers.put("User-Agent","junit");
+        assertEquals("7:true:SLOW:null:junit",(Object)ep.handle.invokeExact((Request)req,(Response)null));
+        req.query.put("opt","3");
+        assertEquals(3,ep.decodeRequest(req,null)[3]);
+        req.query.remove("flag");
+        try{
+            Object ret=(Object)ep.handle.invokeExact((Request)req,(Response)null);
+            fail("primitive without value decoded to "+ret);
+        }catch(IllegalArgumentException ex){
+            assertEquals("missing parameter:flag",ex.getMessage());
+        }
+    }
+    @Test
+    public void bodyBinding() throws Throwable
+    {
+        Router rep=new Router();
+        rep.importMethods(new Params());
+        TestRequest req=new TestRequest();
+        assertTrue(rep.match("POST","/save",req.getRouteMatch()));
+        MethodEndPoint ep=(MethodEndPoint)req.getRouteMatch().getEndPoint();
+        assertEquals(Param.Source.BODY,ep.getDecoders()[0].getSource());
+        // long value spans several reader chunks
+        StringBuilder name=new StringBuilder();
+        for(int i=0;i<20000;i++) name.append((char)('a'+i%26));
+        req.body="{\"name\":\""+name+"\", \"qty\": 12, \"mode\":\"fast\", \"other\":1}";
+        assertEquals("20000:12:FAST",(Object)ep.handle.invokeExact((Request)req,(Response)null));
+        assertTrue(rep.match("POST","/plain",req.getRouteMatch()));
+        assertTrue("Plain objects do not bind the body unasked",((MethodEndPoint)req.getRouteMatch().getEndPoint()).getDecoders()[0].getSource()!=Param.Source.BODY);
+        assertTrue(rep.match("POST","/raw",req.getRouteMatch()));
+        ep=(MethodEndPoint)req.getRouteMatch().getEndPoint();
+        req.body="{\"a\":1,\"b\":[1,2,3]}";
+        assertEquals("2",(Object)ep.handle.invokeExact((Request)req,(Response)null));
+        req.body=null;
+        assertEquals("none",(Object)ep.handle.invokeExact((Request)req,(Response)null));
+        StringBuilder big=new StringBuilder("[");
+        while(big.length()<=Config.BODY_MAX_SIZE.getInitial()) big.append("1234567,");
+        req.body=big.append("0]").toString();
+        try{
+            Object ret=(Object)ep.handle.invokeExact((Request)req,(Response)null);
+            fail("body over limit decoded to "+ret);
+        }catch(IllegalArgumentException ex){
+            assertTrue(ex.getMessage().startsWith("request body exceeds"));
+        }
+        // the limit counts bytes, multibyte text under the limit in chars is still refused
+        StringBuilder wide=new StringBuilder("[\"");
+        while(wide.length()<=Config.BODY_MAX_SIZE.getInitial()/2) wide.append('\u20ac');
+        req.body=wide.append("\"]").toString();
+        ParamDecoder dec=ep.getDecoders()[0];
+        try{
+            Object ret=dec.decode(new TestRequest(){
+                {body=req.body;}
+                @Override public long getContentLength(){return -1;}  // chunked upload, no length up front
+            },null);
+            fail("multibyte body over limit decoded to "+ret);
+        }catch(IllegalArgumentException ex){
+            assertTrue(ex.getMessage().startsWith("request body exceeds"));
         }
     }
 }
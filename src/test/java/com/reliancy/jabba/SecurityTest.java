@@ -16,7 +16,13 @@ import java.util.Map;
 import org.junit.Test;
 
 import com.reliancy.jabba.decor.Routed;
+import com.reliancy.jabba.sec.AuthToken;
+import com.reliancy.jabba.sec.NeedCredentials;
+import com.reliancy.jabba.sec.NotAuthentic;
+import com.reliancy.jabba.sec.Secured;
+import com.reliancy.jabba.sec.SecurityActor;
 import com.reliancy.jabba.sec.SecurityPolicy;
+import com.reliancy.jabba.sec.SecurityStore;
 import com.reliancy.jabba.sec.plain.PlainSecurityStore;
 import com.reliancy.util.Handy;
 
@@ -34,6 +40,7 @@ public class SecurityTest {
         }
         @Override public void setContentType(String type) {}
         @Override public void setStatus(int status) { this.status = status; }
+        @Override public Integer getStatus() { return status; }
         @Override public String getHeader(String name) {
             for(HTTP.Header header : headers) {
                 if(header.key.equalsIgnoreCase(name)) return header.value;
@@ -65,6 +72,95 @@ public class SecurityTest {
         }
     }
     
+    /** request carrying an auth cookie from an address. */
+    static class TestRequest extends Request {
+        final String path;
+        final String auth;
+        final String address;
+        TestRequest(String path, String auth, String address) {
+            this.path = path;
+            this.auth = auth;
+            this.address = address;
+        }
+        @Override public void finish() {}
+        @Override public boolean isAsync() { return false; }
+        @Override public boolean goAsync() { return false; }
+        @Override public String getPath() { return path; }
+        @Override public String getVerb() { return "GET"; }
+        @Override public Object getParam(String pname, Object def) { return def; }
+        @Override public Object getQueryParam(String pname) { return null; }
+        @Override public Request setParam(String pname, Object val) { return this; }
+        @Override public String getHeader(String key) { return null; }
+        @Override public String getCookie(String name, String def) { return SecurityPolicy.KEY_NAME.equals(name) && auth != null ? auth : def; }
+        @Override public String getRemoteAddress() { return address; }
+        @Override public long getContentLength() { return -1; }
+        @Override public java.io.Reader getBodyReader() { return null; }
+        @Override public java.io.InputStream getBodyStream() { return null; }
+        @Override public String getMount() { return null; }
+        @Override public String getProtocol() { return null; }
+        @Override public String getScheme() { return null; }
+    }
+
+    @Test
+    public void testAuthToken() throws Exception {
+        AuthToken.Signer signer = new AuthToken.Signer("test-secret");
+        String tok = signer.issue(5, 60000, "10.0.0.1");
+        assertTrue(AuthToken.isToken(tok));
+        assertEquals(Integer.valueOf(5), signer.verify(tok, "10.0.0.1").getActorId());
+        assertNotNull(signer.verify(tok, "10.0.0.1"));
+        assertEquals("Repeat verify hits the cache", 1, signer.getCache().getHits());
+        assertNull("Bound to the address", signer.verify(tok, "10.0.0.2"));
+        char last = tok.charAt(tok.length() - 1);
+        String forged = tok.substring(0, tok.length() - 1) + (last == 'A' ? 'B' : 'A');
+        assertNull("Tampered token fails", signer.verify(forged, "10.0.0.1"));
+        assertNull("Other key fails", new AuthToken.Signer("other-secret").verify(tok, "10.0.0.1"));
+        assertNull("Expired token fails", signer.verify(signer.issue(5, -1, "10.0.0.1"), "10.0.0.1"));
+        signer.revoke(5);
+        assertNull("Revoked token fails", signer.verify(tok, "10.0.0.1"));
+        assertNotNull("Token issued after the revoke is good", signer.verify(signer.issue(5, 60000, "10.0.0.1"), "10.0.0.1"));
+        try{
+            signer.issue(null, 60000, "10.0.0.1");
+            fail("Actor without id gets no token");
+        }catch(IllegalArgumentException expected){
+        }
+    }
+
+    @Test
+    public void testAuthenticateWithToken() throws Exception {
+        PlainSecurityStore store = new PlainSecurityStore();
+        SecurityActor admin = (SecurityActor) store.loadSecurable(null, SecurityStore.ADMIN);
+        SecurityPolicy policy = new SecurityPolicy();
+        policy.setStore(store);
+        policy.setSecured("GET /private", TestEndpoint.class.getMethod("privateMethod").getAnnotation(Secured.class));
+        String tok = policy.issueToken(admin, "127.0.0.1");
+        assertSame(admin, policy.authenticate(new TestRequest("/private", tok, "127.0.0.1")));
+        try{
+            policy.authenticate(new TestRequest("/private", tok, "127.0.0.2"));
+            fail("Token from another address is refused");
+        }catch(NotAuthentic expected){
+        }
+        try{
+            policy.authenticate(new TestRequest("/private", AuthToken.PREFIX + "garbage", "127.0.0.1"));
+            fail("Forged token is refused");
+        }catch(NotAuthentic expected){
+        }
+        try{
+            policy.authenticate(new TestRequest("/private", policy.getTokens().issue(admin.getId(), -1, "127.0.0.1"), "127.0.0.1"));
+            fail("Expired token asks for credentials");
+        }catch(NeedCredentials expected){
+        }
+        assertNull("Open paths need no user", policy.authenticate(new TestRequest("/public", tok, "127.0.0.1")));
+        policy.revokeTokens(admin);
+        try{
+            policy.authenticate(new TestRequest("/private", tok, "127.0.0.1"));
+            fail("Revoked token asks for credentials");
+        }catch(NeedCredentials expected){
+        }
+        TestResponse resp = new TestResponse((Request) null);
+        policy.setAuthCookie(new TestRequest("/login", null, "127.0.0.1"), resp, admin);
+        assertTrue(AuthToken.isToken(resp.getCookie(SecurityPolicy.KEY_NAME)));
+    }
+
     @Test
     public void testSecretKeyFromEnvironment() throws Exception {
         // Test that secret key can be loaded from environment using reflection
@@ -142,6 +238,39 @@ public class SecurityTest {
         assertEquals("Cookie value should match", "value", response.getCookie("test"));
     }
     
+    @Test
+    public void testSecuredAssetPath() throws Exception {
+        App app = new App("assets") {};
+        AppSessionFilter sessions = app.addAppSession();
+        sessions.exclude("/files/");
+        PlainSecurityStore store = new PlainSecurityStore();
+        SecurityActor admin = (SecurityActor) store.loadSecurable(null, SecurityStore.ADMIN);
+        SecurityPolicy policy = new SecurityPolicy();
+        policy.setStore(store);
+        policy.setSecured("GET /files/private/", TestEndpoint.class.getMethod("privateMethod").getAnnotation(Secured.class));
+        String tok = policy.issueToken(admin, "127.0.0.1");
+        app.setSecurityPolicy(policy);
+        try{
+            CallSession css = CallSession.getInstance();
+            css.setAppSession(null);
+            sessions.beforeServe(new TestRequest("/files/logo.png", null, "127.0.0.1"), new TestResponse((Request) null));
+            assertFalse("Open assets get no session", css.hasAppSession());
+            TestRequest req = new TestRequest("/files/private/report.pdf", null, "127.0.0.1");
+            sessions.beforeServe(req, new TestResponse((Request) null));
+            assertTrue("Secured assets keep their session", css.hasAppSession());
+            css.setAppSession(null);
+            TestResponse resp = new TestResponse((Request) null);
+            policy.beforeServe(req, resp);
+            assertEquals("No session still needs a user", Response.HTTP_UNAUTHORIZED, resp.getStatus().intValue());
+            resp = new TestResponse((Request) null);
+            policy.beforeServe(new TestRequest("/files/private/report.pdf", tok, "127.0.0.1"), resp);
+            assertEquals(200, resp.getStatus().intValue());
+            css.setAppSession(null);
+        }finally{
+            app.setSecurityPolicy(null);
+        }
+    }
+
     @Test
     public void testResponseHeaderLookup() {
         // Test that header lookup works correctly (bug fix verification)
@@ -158,6 +287,10 @@ public class SecurityTest {
         public String testMethod(String param) {
             return param;
         }
+        @Secured
+        public String privateMethod() {
+            return "private";
+        }
     }
 }
 
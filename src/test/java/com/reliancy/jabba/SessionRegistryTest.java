@@ -0,0 +1,61 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionRegistryTest {
+    /** session that also answers to an alias. */
+    static class AliasSession extends AppSession{
+        AliasSession(String id){super(id,null);}
+        @Override
+        protected void onPublish(SessionRegistry directory){
+            directory.put("alias-"+id,this);
+        }
+        @Override
+        protected void onRetract(SessionRegistry directory){
+            directory.remove("alias-"+id);
+        }
+    }
+
+    @Test
+    public void capEvictsLeastRecentlyUsed() {
+        SessionRegistry reg = new SessionRegistry(1, 3);
+        for(String id : new String[]{"a", "b", "c"}) reg.publish(id, new AppSession(id, null));
+        assertNotNull(reg.get("a"));   // a is now the most recent
+        reg.publish("d", new AppSession("d", null));
+        assertNull("Least recently used goes", reg.get("b"));
+        assertNotNull(reg.get("a"));
+        assertEquals(3, reg.getLive());
+        assertEquals(1, reg.getEvicted());
+    }
+
+    @Test
+    public void sweepDropsExpired() throws Exception {
+        SessionRegistry reg = new SessionRegistry();
+        AppSession idle = new AliasSession("idle");
+        idle.setMaxAge(0);
+        reg.publish("idle", idle);
+        reg.publish("busy", new AppSession("busy", null));
+        assertSame(idle, reg.get("alias-idle"));
+        assertEquals(3, reg.getLive());
+        Thread.sleep(5);
+        reg.startSweeper(10);
+        try{
+            for(int i = 0; i < 200 && reg.getExpired() == 0; i++) Thread.sleep(10);
+        }finally{
+            reg.stopSweeper();
+        }
+        assertEquals(1, reg.getExpired());
+        assertNull(reg.get("idle"));
+        assertNull("Retract hook ran", reg.get("alias-idle"));
+        assertNotNull(reg.get("busy"));
+        assertEquals(1, reg.getLive());
+    }
+}
@@ -0,0 +1,180 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba;
+
+import java.io.File;
+import java.sql.DriverManager;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SessionStoreTest {
+    static final AppSession.Factory factory=(id,app)->new AppSession(id,app);
+
+    @Test
+    public void mappedSurvivesReopen() throws Exception {
+        File file = File.createTempFile("sessions", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        try(MappedSessionStore st = new MappedSessionStore(file, 64, 1024)){
+            AppSession ss = new AppSession("s1", null);
+            ss.setStore(st);
+            ss.setValue("name", "jabba");
+            ss.setValue("count", 3);
+            ss.setValue("blob", new byte[]{1, 2, 3});
+            ss.setValue("skipped", new Object());
+            ss.userId = 7;
+            st.save(ss);
+            assertEquals(1, st.size());
+        }
+        try(MappedSessionStore st = new MappedSessionStore(file, 64, 1024)){
+            AppSession ss = st.load("s1", null, factory);
+            assertNotNull("Session survives reopen", ss);
+            assertSame(st, ss.getStore());
+            assertEquals("jabba", ss.getValue("name"));
+            assertEquals(3, ss.getValue("count"));
+            assertArrayEquals(new byte[]{1, 2, 3}, (byte[])ss.getValue("blob"));
+            assertNull("Values we can not encode are skipped", ss.getValue("skipped"));
+            assertEquals(Integer.valueOf(7), ss.getUserId());
+            long before = ss.getLastActive();
+            Thread.sleep(2);
+            ss.setLastActive();
+            assertTrue(st.load("s1", null, factory).getLastActive() > before);
+            st.delete("s1");
+            assertNull(st.load("s1", null, factory));
+        }
+        try{
+            new MappedSessionStore(file, 32, 1024).close();
+            fail("Other geometry is refused");
+        }catch(java.io.IOException expected){
+        }
+    }
+
+    /** serializable but not on the allow-list. */
+    static class Gadget implements java.io.Serializable {
+        String payload = "x";
+    }
+
+    @Test
+    public void codecFiltersSerializedValues() throws Exception {
+        java.util.HashMap<String,Object> vals = new java.util.HashMap<>();
+        vals.put("list", new java.util.ArrayList<>(java.util.List.of("a", "b")));
+        vals.put("gadget", new Gadget());
+        vals.put("name", "jabba");
+        java.util.Map<String,Object> back = SessionCodec.decode(SessionCodec.encode(vals));
+        assertEquals(java.util.List.of("a", "b"), back.get("list"));
+        assertEquals("jabba", back.get("name"));
+        assertFalse("Classes off the allow-list are skipped", back.containsKey("gadget"));
+    }
+
+    @Test
+    public void mappedReadsAroundWriters() throws Exception {
+        File file = File.createTempFile("sessions", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        try(MappedSessionStore st = new MappedSessionStore(file, 16, 512)){
+            AppSession ss = new AppSession("s1", null);
+            ss.setValue("name", "jabba");
+            st.save(ss);
+            int off = st.offset(st.home("s1"));
+            int seq = (int)MappedSessionStore.INTS.get(st.map, off + MappedSessionStore.SEQ);
+            assertEquals("Writes leave the sequence even", 0, seq & 1);
+            MappedSessionStore.INTS.set(st.map, off + MappedSessionStore.SEQ, seq + 1); // writer died midway
+            assertEquals("Reads under the file lock after spinning", "jabba", st.load("s1", null, factory).getValue("name"));
+            ss.setStore(st);
+            ss.setLastActive();
+            st.flush();
+            assertEquals(0, (int)MappedSessionStore.INTS.get(st.map, off + MappedSessionStore.SEQ) & 1);
+            assertEquals(ss.getLastActive(), st.load("s1", null, factory).getLastActive());
+        }
+    }
+
+    @Test
+    public void mappedQueuesTouches() throws Exception {
+        File file = File.createTempFile("sessions", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        try(MappedSessionStore st = new MappedSessionStore(file, 16, 512);
+            MappedSessionStore other = new MappedSessionStore(file, 16, 512)){
+            AppSession ss = new AppSession("s1", null);
+            ss.lastActive = 1000;
+            st.save(ss);
+            ss.lastActive = 2000;
+            st.touch(ss);
+            st.touch(ss);
+            assertEquals("Touches coalesce", 1, st.getPending());
+            assertEquals("Own loads see the touch", 2000, st.load("s1", null, factory).getLastActive());
+            assertEquals("Other processes wait for the flush", 1000, other.load("s1", null, factory).getLastActive());
+            assertEquals(1, st.flush());
+            assertEquals(0, st.getPending());
+            assertEquals(2000, other.load("s1", null, factory).getLastActive());
+        }
+    }
+
+    @Test
+    public void filterLeavesCallerStoreOpen() throws Exception {
+        File file = File.createTempFile("sessions", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        try(MappedSessionStore st = new MappedSessionStore(file, 16, 512)){
+            AppSessionFilter filter = new AppSessionFilter(new App("sessions") {}).setStore(st);
+            filter.begin(null);
+            AppSession ss = new AppSession("s1", null);
+            st.save(ss);
+            ss.lastActive += 10;
+            st.touch(ss);
+            filter.end();
+            assertEquals("Queued activity is written on end", 0, st.getPending());
+            assertEquals("Store we passed in stays open", ss.getLastActive(), st.load("s1", null, factory).getLastActive());
+        }
+    }
+
+    @Test
+    public void mappedEvictsWithinProbeRun() throws Exception {
+        File file = File.createTempFile("sessions", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        try(MappedSessionStore st = new MappedSessionStore(file, 4, 512)){
+            for(int i = 0; i < 6; i++){
+                AppSession ss = new AppSession("s" + i, null);
+                ss.lastActive = 1000 + i;
+                ss.setMaxAge(Long.MAX_VALUE);
+                st.save(ss);
+            }
+            assertEquals(4, st.size());
+            assertNotNull("Most active stay", st.load("s5", null, factory));
+            assertNull("Least active go", st.load("s0", null, factory));
+        }
+    }
+
+    @Test
+    public void sqlWritesActivityBehind() throws Exception {
+        String url = "jdbc:h2:mem:sessions;DB_CLOSE_DELAY=-1";
+        SQLSessionStore st = new SQLSessionStore(() -> DriverManager.getConnection(url), "app_session");
+        AppSession ss = new AppSession("s1", null);
+        ss.setStore(st);
+        ss.setValue("name", "jabba");
+        AppSession back = st.load("s1", null, factory);
+        assertEquals("jabba", back.getValue("name"));
+        assertNull(back.getUserId());
+        long saved = back.getLastActive();
+        Thread.sleep(2);
+        back.setLastActive();
+        assertEquals("Touch is queued", 1, st.getPending());
+        assertEquals(1, st.flush());
+        assertEquals(0, st.getPending());
+        SQLSessionStore other = new SQLSessionStore(() -> DriverManager.getConnection(url), "app_session");
+        assertTrue("Another node sees the activity", other.load("s1", null, factory).getLastActive() > saved);
+        ss.setMaxAge(0);
+        ss.lastActive = 0;
+        st.save(ss);
+        assertEquals(1, st.purge());
+        assertNull(st.load("s1", null, factory));
+        st.close();
+    }
+}
@@ -0,0 +1,89 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba.sec.plain;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.reliancy.jabba.sec.SecurityStore;
+
+public class PlainSecurityStoreTest {
+    PlainActor actor(PlainSecurityStore store, String name, String pwd) throws Exception {
+        PlainActor a = (PlainActor) store.newActor();
+        a.setPassword(pwd).setName(name);
+        store.saveSecurable(null, a);
+        return a;
+    }
+
+    @Test
+    public void indexesFollowSaveAndDelete() throws Exception {
+        PlainSecurityStore store = new PlainSecurityStore();
+        for(int i = 0; i < 1000; i++) actor(store, "user" + i, "pwd" + i);
+        PlainActor bob = actor(store, "Bob", "secret");
+        assertSame(bob, store.loadSecurable(null, bob.getId()));
+        assertSame("Names match without case", bob, store.loadActor(null, "BOB", "secret"));
+        assertNull("Wrong password", store.loadActor(null, "bob", "nope"));
+        assertSame(store.admin, store.loadSecurable(null, SecurityStore.ADMIN));
+        bob.setName("Robert");
+        store.saveSecurable(null, bob);
+        assertNull("Old name is dropped", store.loadActor(null, "bob", "secret"));
+        assertSame(bob, store.loadActor(null, "robert", "secret"));
+        store.deleteSecurable(null, bob);
+        assertNull(store.loadSecurable(null, bob.getId()));
+        assertNull(store.loadActor(null, "robert", "secret"));
+        assertEquals(1002, store.securables.size());
+    }
+
+    @Test
+    public void explicitIdsAreSkipped() throws Exception {
+        PlainSecurityStore store = new PlainSecurityStore();
+        PlainActor fixed = (PlainActor) store.newActor();
+        fixed.setName("fixed").setId(store.nextId + 1);
+        store.saveSecurable(null, fixed);
+        PlainActor a = actor(store, "a", "x");
+        PlainActor b = actor(store, "b", "x");
+        assertNotEquals(fixed.getId(), a.getId());
+        assertNotEquals(fixed.getId(), b.getId());
+        assertSame(fixed, store.loadSecurable(null, fixed.getId()));
+    }
+
+    @Test
+    public void sharedNamesMatchEachPassword() throws Exception {
+        PlainSecurityStore store = new PlainSecurityStore();
+        PlainActor first = actor(store, "pat", "one");
+        PlainActor second = actor(store, "Pat", "two");
+        assertSame(first, store.loadActor(null, "pat", "one"));
+        assertSame("Second actor of a name is reachable", second, store.loadActor(null, "pat", "two"));
+        assertSame(first, store.loadActor(store.admin, "pat", null));
+        store.deleteSecurable(null, first);
+        assertSame(second, store.loadActor(store.admin, "pat", null));
+        assertNull(store.loadActor(null, "pat", "one"));
+        store.securables.listIterator().add(second);
+        assertEquals("Iterator add skips held items", 3, store.securables.size());
+    }
+
+    @Test
+    public void permitsIndexedByActorAndSubject() throws Exception {
+        PlainSecurityStore store = new PlainSecurityStore();
+        PlainActor bob = actor(store, "bob", "secret");
+        PlainSecurable doc = (PlainSecurable) store.newSecurable();
+        store.saveSecurable(null, doc);
+        PlainPermit p = (PlainPermit) store.newPermit();
+        p.actor = bob;
+        p.subject = doc;
+        store.savePermit(null, p);
+        assertSame(p, store.loadPermit(null, p.getId()));
+        assertEquals(1, store.loadPermitsBy(null, bob).size());
+        assertEquals(1, store.loadPermitsOn(null, doc).size());
+        assertEquals(0, store.loadPermitsBy(null, store.guest).size());
+        store.deletePermit(null, p);
+        assertNull(store.loadPermit(null, p.getId()));
+        assertTrue(store.loadPermitsBy(null, bob).isEmpty());
+        assertTrue(store.loadPermitsOn(null, doc).isEmpty());
+    }
+}
@@ -0,0 +1,42 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba.servlet;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.reliancy.jabba.CallSession;
+
+public class ExchangePoolTest {
+    /** an async chain ending on another thread still gives the pair back to the acquiring thread. */
+    @Test
+    public void releaseReturnsToAcquiringThread() throws Exception {
+        ExchangePool pool = new ExchangePool();
+        ServletResponse resp = pool.acquire(null, null);
+        CallSession ss = resp.getRequest().getSession();
+        ss.retain();
+        Thread other = new Thread(ss::release);
+        other.start();
+        other.join();
+        assertSame(resp, pool.acquire(null, null));
+        assertEquals(1, pool.getReused());
+        assertEquals(1, pool.getCreated());
+    }
+    /** a chain already done when promiseLast is called recycles the pair right away. */
+    @Test
+    public void recycledAfterDoneChainIsClean() throws Exception {
+        ExchangePool pool = new ExchangePool();
+        ServletResponse resp = pool.acquire(null, null);
+        resp.getRequest().getSession().setExecutor(Runnable::run);
+        resp.promiseFirst(v -> "done");
+        resp.promiseLast((result, error) -> {});
+        ServletResponse next = pool.acquire(null, null);
+        assertSame(resp, next);
+        assertFalse("Reused response carries no promise", next.isPromised());
+    }
+}
@@ -0,0 +1,56 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+package com.reliancy.jabba.ui;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TemplateTest {
+    /**
+     * Every template on the classpath compiles up front with its time reported.
+     */
+    @Test
+    public void precompile() throws Exception {
+        Map<String,Long> times = Template.precompile(Template.class);
+        assertTrue("error page found", times.containsKey("/templates/error.hbs"));
+        for(Map.Entry<String,Long> e : times.entrySet()){
+            assertTrue(e.getKey(), e.getValue() > 0);
+            assertTrue(Template.find(e.getKey()).isCompiled());
+        }
+    }
+    /**
+     * Concurrent first renders share one compile.
+     */
+    @Test
+    public void compileOnce() throws Exception {
+        Template t = new Template("hello {{name}}");
+        CountDownLatch start = new CountDownLatch(1);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<Object>[] runs = new CompletableFuture[8];
+        for(int i = 0; i < runs.length; i++){
+            runs[i] = CompletableFuture.supplyAsync(() -> {
+                try{
+                    start.await();
+                    return t.compile();
+                }catch(Exception e){
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        start.countDown();
+        for(CompletableFuture<Object> r : runs) assertSame(runs[0].get(), r.get());
+        Map<String,Object> ctx = new HashMap<>();
+        ctx.put("name", "jabba");
+        assertEquals("hello jabba", t.render(ctx).toString());
+    }
+}
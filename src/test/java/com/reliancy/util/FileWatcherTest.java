@@ -0,0 +1,54 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+
+package com.reliancy.util;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FileWatcherTest {
+    /**
+     * Changes in watched folders (new sub folders too) reach listeners and clear remembered misses.
+     */
+    @Test
+    public void watching() throws Exception
+    {
+        Path dir=Files.createTempDirectory("jabba");
+        Path sub=dir.resolve("sub");
+        Path file=sub.resolve("late.txt");
+        long ttl=Resources.getCacheTTL();
+        LinkedBlockingQueue<Path> seen=new LinkedBlockingQueue<>();
+        try(FileWatcher watcher=new FileWatcher()){
+            Resources.setCacheTTL(60000);
+            Object[] sp=new Object[]{dir.toString()};
+            watcher.addListener(Resources::invalidate).addListener(seen::add).registerAll(sp); // invalidate before we wake
+            assertTrue(watcher.isWatching(dir));
+            Files.createDirectory(sub);
+            assertEquals(sub.toAbsolutePath(),seen.poll(10,TimeUnit.SECONDS));
+            for(int i=0;i<100 && !watcher.isWatching(sub);i++) Thread.sleep(50);
+            assertTrue("New folder is watched",watcher.isWatching(sub));
+            assertNull(Resources.findFirst(null,"sub/late.txt",sp));
+            Files.write(file,"x".getBytes());
+            Path changed=null;
+            while(!file.toAbsolutePath().equals(changed)){
+                changed=seen.poll(10,TimeUnit.SECONDS);
+                assertNotNull("Change reported",changed);
+            }
+            assertNotNull("Miss dropped on change",Resources.findFirst(null,"sub/late.txt",sp));
+        }finally{
+            Resources.setCacheTTL(ttl);
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(sub);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/* 
+Copyright (c) 2011-2022 Reliancy LLC
+
+Licensed under the GNU LESSER GENERAL PUBLIC LICENSE Version 3.
+You may obtain a copy of the License at https://www.gnu.org/licenses/lgpl-3.0.en.html.
+You may not use this file except in compliance with the License. 
+*/
+
+package com.reliancy.util;
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResourcesTest {
+    /**
+     * Lookups are remembered, misses too, until invalidated or expired.
+     */
+    @Test
+    public void lookupCache() throws Exception
+    {
+        Path dir=Files.createTempDirectory("jabba");
+        Path file=dir.resolve("found.txt");
+        long ttl=Resources.getCacheTTL();
+        try{
+            Object[] sp=new Object[]{dir.toString()};
+            Resources.setCacheTTL(60000);
+            assertNull(Resources.findFirst(null,"found.txt",sp));
+            Files.write(file,"x".getBytes());
+            assertNull("Miss is remembered",Resources.findFirst(null,"found.txt",sp));
+            Resources.invalidate();
+            URL url=Resources.findFirst(null,"found.txt",sp);
+            assertEquals(file.toFile(),new File(url.toURI()));
+            long hits=Resources.getLookupCache().getHits();
+            assertSame(url,Resources.findFirst(null,"found.txt",new Object[]{sp[0]}));
+            assertEquals("Equal search path by identity hits",hits+1,Resources.getLookupCache().getHits());
+            Resources.setCacheTTL(0);
+            Files.delete(file);
+            assertNull("Not remembered when disabled",Resources.findFirst(null,"found.txt",sp));
+        }finally{
+            Resources.setCacheTTL(ttl);
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+}